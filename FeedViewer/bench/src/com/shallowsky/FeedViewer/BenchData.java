@@ -0,0 +1,85 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+// Made-up server responses for the benchmarks, shaped like the real
+// ones: Apache directory listings, feedme MANIFESTs, and HTML.
+// Always the same for the same size, so runs can be compared.
+public class BenchData {
+
+    // An Apache 2.4 fancy-indexed listing with n entries,
+    // every fourth one a directory.
+    public static String listing(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">\n"
+                  + "<html>\n <head>\n  <title>Index of /feeds/10-18-Sun"
+                  + "</title>\n </head>\n <body>\n"
+                  + "<h1>Index of /feeds/10-18-Sun</h1>\n  <table>\n"
+                  + "   <tr><th valign=\"top\"><img src=\"/icons/blank.gif\""
+                  + " alt=\"[ICO]\"></th><th><a href=\"?C=N;O=D\">Name</a>"
+                  + "</th><th><a href=\"?C=M;O=A\">Last modified</a></th>"
+                  + "<th><a href=\"?C=S;O=A\">Size</a></th>"
+                  + "<th><a href=\"?C=D;O=A\">Description</a></th></tr>\n"
+                  + "   <tr><th colspan=\"5\"><hr></th></tr>\n"
+                  + "<tr><td valign=\"top\"><img src=\"/icons/back.gif\""
+                  + " alt=\"[PARENTDIR]\"></td><td><a href=\"/feeds/\">"
+                  + "Parent Directory</a></td><td>&nbsp;</td>"
+                  + "<td align=\"right\">  - </td><td>&nbsp;</td></tr>\n");
+        for (int i = 0; i < n; ++i) {
+            Boolean dir = (i % 4 == 0);
+            String name = dir ? ("feed-" + i + "/")
+                : ("article-" + i + "-with-a-longish-name.html");
+            sb.append("<tr><td valign=\"top\"><img src=\"/icons/")
+                .append(dir ? "folder.gif\" alt=\"[DIR]\"" : "text.gif\" alt=\"[TXT]\"")
+                .append("></td><td><a href=\"").append(name).append("\">")
+                .append(name).append("</a></td>")
+                .append("<td align=\"right\">2026-10-18 06:")
+                .append(String.format("%02d", i % 60))
+                .append("  </td><td align=\"right\">")
+                .append(dir ? "  - " : ((i * 37) % 90 + 2) + "K")
+                .append("</td><td>&nbsp;</td></tr>\n");
+        }
+        sb.append("   <tr><th colspan=\"5\"><hr></th></tr>\n</table>\n"
+                  + "<address>Apache/2.4.41 (Ubuntu) Server at example.com"
+                  + " Port 80</address>\n</body></html>\n");
+        return sb.toString();
+    }
+
+    // A complete MANIFEST of n entries, with sizes and hashes.
+    public static byte[] manifest(int n) {
+        Random random = new Random(n);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            sb.append("feed-").append(i / 100).append('/');
+            if (i % 2 == 1)
+                sb.append("img/").append(i).append(".jpg");
+            else
+                sb.append("article-").append(i).append(".html");
+            sb.append('\t').append(1000 + random.nextInt(100000))
+                .append('\t');
+            for (int j = 0; j < 64; ++j)
+                sb.append(Character.forDigit(random.nextInt(16), 16));
+            sb.append('\n');
+        }
+        sb.append(ManifestReader.EOF_MARKER).append('\n');
+        return bytes(sb.toString());
+    }
+
+    // size bytes of a response body: a listing, cut or repeated to fit.
+    public static byte[] response(int size) {
+        byte[] listing = bytes(listing(200));
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; ++i)
+            body[i] = listing[i % listing.length];
+        return body;
+    }
+
+    static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parsing Apache directory listings, which we do on every poll while
+// waiting for feedme, and once per feed directory in pipelined mode.
+// A day directory has a few dozen entries; a feed's img directory
+// can have a few thousand.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({ "20", "200", "2000" })
+    int entries;
+
+    byte[] mListing;
+    DirListing mPolled;
+
+    @Setup
+    public void setup() throws IOException {
+        mListing = BenchData.bytes(BenchData.listing(entries));
+        // One that's seen this listing already, as on every
+        // poll after the first while feedme runs.
+        mPolled = new DirListing();
+        mPolled.update(new ByteArrayInputStream(mListing));
+    }
+
+    // Reading a feed directory's listing to queue what's in it.
+    @Benchmark
+    public List<String> hrefs() throws IOException {
+        return DirListing.hrefs(new ByteArrayInputStream(mListing));
+    }
+
+    // Polling a directory that hasn't changed.
+    @Benchmark
+    public DirListing.Diff poll() throws IOException {
+        return mPolled.update(new ByteArrayInputStream(mListing));
+    }
+
+    // What we used to do for each poll, for comparison: read the
+    // whole response into a String, then run a regexp over it.
+    @Benchmark
+    public List<String> regexp() throws IOException {
+        String html = FetchEngine.readIt(new ByteArrayInputStream(mListing));
+        List<String> subdirs = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("<a [^>]+>(.+?)</a>",
+                   Pattern.CASE_INSENSITIVE|Pattern.DOTALL).matcher(html);
+        Boolean started = false;
+        while (matcher.find()) {
+            if (started)
+                subdirs.add(matcher.group(1));
+            if (matcher.group(1).equals("Parent Directory"))
+                started = true;
+        }
+        return subdirs;
+    }
+}
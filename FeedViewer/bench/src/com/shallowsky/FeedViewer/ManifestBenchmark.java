@@ -0,0 +1,76 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Reading a MANIFEST, entries and all, including the .EOF. check.
+// A light day is a few hundred files, a heavy one ten thousand.
+// readWhole is the way fetchManifest used to do it, for comparison:
+// the whole body into one String, a substring check for the trailer,
+// then split into lines.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    int entries;
+
+    byte[] mManifest;
+
+    @Setup
+    public void setup() {
+        mManifest = BenchData.manifest(entries);
+    }
+
+    @Benchmark
+    public Boolean read(final Blackhole bh) throws IOException {
+        ManifestReader reader = new ManifestReader(
+            new ManifestReader.Listener() {
+                public void entry(ManifestReader.Entry entry) {
+                    bh.consume(entry);
+                }
+            });
+        return reader.read(new ByteArrayInputStream(mManifest));
+    }
+
+    @Benchmark
+    public Boolean readWhole(Blackhole bh) throws IOException {
+        String manifest =
+            FetchEngine.readIt(new ByteArrayInputStream(mManifest));
+        int manlen = manifest.length() - 1;
+        while (manlen > 0 &&
+               (manifest.charAt(manlen) == '\n' ||
+                manifest.charAt(manlen) == '\r'))
+            manlen -= 1;
+        int eoflen = ManifestReader.EOF_MARKER.length();
+        String endman = manifest.substring(manlen-eoflen+1, manlen+1);
+        if (!endman.equals(ManifestReader.EOF_MARKER))
+            return false;
+        // Parse each line the same way read() does, so the two
+        // differ only in how the lines get there.
+        for (String f : manifest.split("\n+")) {
+            if (f.equals(ManifestReader.EOF_MARKER))
+                break;
+            bh.consume(ManifestReader.parse(f));
+        }
+        return true;
+    }
+}
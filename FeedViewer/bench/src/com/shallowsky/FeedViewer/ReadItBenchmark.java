@@ -0,0 +1,44 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Turning a response body into a String, as readIt does for every
+// listing and every urlrss.cgi reply: from a small reply up to
+// the listing of a big directory.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadItBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    int size;
+
+    byte[] mBody;
+
+    @Setup
+    public void setup() {
+        mBody = BenchData.response(size);
+    }
+
+    @Benchmark
+    public String readIt() throws IOException {
+        return FetchEngine.readIt(new ByteArrayInputStream(mBody));
+    }
+}
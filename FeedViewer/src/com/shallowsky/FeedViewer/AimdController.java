@@ -0,0 +1,139 @@
+package com.shallowsky.FeedViewer;
+
+// How many files to download at once, worked out as we go, the way
+// TCP works out how much to send: add one more downloader while that
+// keeps making things faster, and halve the number as soon as there
+// are timeouts or the server starts taking noticeably longer to answer.
+// (Additive increase, multiplicative decrease: AIMD.)
+//
+// On good Wi-Fi that climbs to the maximum; on a weak cell signal
+// it settles at one or two, rather than having a fixed number of
+// downloads all time out together.
+//
+// Downloaders report each file with record(); every so often that
+// closes a sampling interval and maybe changes the window.
+public class AimdController {
+
+    int mMin;
+    int mMax;
+    int mWindow;
+
+    // An interval ends after this many files, or this much time,
+    // whichever comes later, so there's something to go on.
+    static final int MIN_SAMPLES = 4;
+    static final long MIN_INTERVAL = 1000;     // milliseconds
+
+    // Throughput has to go up by this much to count as better.
+    static final double IMPROVEMENT = 1.05;
+    // Latency this many times the best we've seen means we're
+    // queueing somewhere.
+    static final double LATENCY_LIMIT = 2.0;
+
+    long mIntervalStart;
+    int mSamples = 0;
+    long mBytes = 0;
+    long mLatencyTotal = 0;
+    Boolean mTimedOut = false;
+    Boolean mBackedOff = false;
+    long mLastDecrease = 0;
+
+    double mLastThroughput = 0;    // bytes per second
+    double mBestLatency = -1;      // milliseconds per file
+    // For the progress display.
+    double mThroughput = 0;
+
+    FetchEngine.Clock mClock;
+
+    public AimdController(int initial, int min, int max,
+                          FetchEngine.Clock clock) {
+        mMin = Math.max(1, min);
+        mMax = Math.max(mMin, max);
+        mWindow = Math.max(mMin, Math.min(initial, mMax));
+        mClock = clock;
+        mIntervalStart = mClock.now();
+    }
+
+    public synchronized int window() {
+        return mWindow;
+    }
+
+    public synchronized double throughput() {
+        return mThroughput;
+    }
+
+    // One file done (or failed): how big it was, how long it took,
+    // and whether it was a timeout.
+    public synchronized void record(long bytes, long millis,
+                                    Boolean timedOut) {
+        // Don't count time when nothing was downloading, e.g. while
+        // we waited for feedme, as slowness.
+        long now = mClock.now();
+        if (mSamples == 0)
+            mIntervalStart = Math.max(mIntervalStart, now - millis);
+        ++mSamples;
+        mBytes += bytes;
+        mLatencyTotal += millis;
+        if (timedOut)
+            mTimedOut = true;
+
+        // Back off right away on a timeout, rather than waiting for
+        // the interval to end; but only once for a bunch of downloads
+        // that all time out together.
+        if (mTimedOut && now - mLastDecrease >= MIN_INTERVAL) {
+            endInterval();
+            return;
+        }
+        if (mSamples < Math.max(MIN_SAMPLES, mWindow)
+            || now - mIntervalStart < MIN_INTERVAL)
+            return;
+        endInterval();
+    }
+
+    private void endInterval() {
+        long now = mClock.now();
+        long elapsed = Math.max(1, now - mIntervalStart);
+        double throughput = mBytes * 1000.0 / elapsed;
+        double latency = (double)mLatencyTotal / Math.max(1, mSamples);
+
+        if (mTimedOut) {
+            decrease();
+        } else if (mBestLatency > 0
+                   && latency > mBestLatency * LATENCY_LIMIT
+                   && throughput < mLastThroughput * IMPROVEMENT) {
+            // Slower to answer and no faster overall: too many.
+            decrease();
+        } else if (throughput > mLastThroughput * IMPROVEMENT) {
+            if (mWindow < mMax)
+                ++mWindow;
+        }
+        // Otherwise it's as good as it's going to get: stay put.
+
+        if (!mTimedOut && (mBestLatency < 0 || latency < mBestLatency))
+            mBestLatency = latency;
+        mThroughput = throughput;
+        // After backing off, start probing upward again
+        // from wherever we've landed.
+        mLastThroughput = mBackedOff ? 0 : throughput;
+        mBackedOff = false;
+
+        mIntervalStart = now;
+        mSamples = 0;
+        mBytes = 0;
+        mLatencyTotal = 0;
+        mTimedOut = false;
+    }
+
+    private void decrease() {
+        mWindow = Math.max(mMin, mWindow / 2);
+        mBackedOff = true;
+        mLastDecrease = mClock.now();
+    }
+
+    // e.g. "4 at a time, 310 KB/s"
+    public synchronized String summary() {
+        String s = mWindow + " at a time";
+        if (mThroughput > 0)
+            s += ", " + FetchEngine.formatBytes((long)mThroughput) + "/s";
+        return s;
+    }
+}
@@ -0,0 +1,66 @@
+package com.shallowsky.FeedViewer;
+
+import java.util.Random;
+
+// Exponential backoff with jitter and a cap: check often at first and
+// whenever something's happening, less often the longer nothing does.
+//
+// If we know roughly how long feedme usually takes (see FeedmeHistory),
+// we also make sure not to sleep past that point, and start checking
+// quickly again once we get there, since that's when MANIFEST is
+// most likely to show up.
+public class BackoffWaitStrategy implements WaitStrategy {
+    long mBase;
+    long mCap;
+    double mFactor = 2.0;
+    // Each delay is randomized by up to this fraction either way,
+    // so several clients don't all poll in lockstep.
+    double mJitter = 0.25;
+    // How long feedme is expected to take, or -1 if we don't know.
+    long mExpected;
+
+    long mCur;
+    Boolean mPassedExpected;
+    Random mRandom = new Random();
+
+    public BackoffWaitStrategy(long base, long cap, long expected) {
+        mBase = base;
+        mCap = Math.max(base, cap);
+        mExpected = expected;
+        start();
+    }
+
+    public void setFactor(double factor) {
+        mFactor = Math.max(1.0, factor);
+    }
+
+    public void setJitter(double jitter) {
+        mJitter = Math.max(0.0, Math.min(jitter, 1.0));
+    }
+
+    public void start() {
+        mCur = mBase;
+        mPassedExpected = false;
+    }
+
+    public long nextDelay(long elapsed, Boolean progress) {
+        if (progress)
+            mCur = mBase;
+        else
+            mCur = Math.min(mCap, (long)(mCur * mFactor));
+
+        if (mExpected > 0 && !mPassedExpected) {
+            long left = mExpected - elapsed;
+            if (left <= 0) {
+                // We're at the usual finishing time: look sharp.
+                mPassedExpected = true;
+                mCur = mBase;
+            } else if (left < mCur) {
+                mCur = Math.max(mBase, left);
+            }
+        }
+
+        double jitter = 1.0 + mJitter * (2 * mRandom.nextDouble() - 1);
+        return Math.max(1, (long)(mCur * jitter));
+    }
+}
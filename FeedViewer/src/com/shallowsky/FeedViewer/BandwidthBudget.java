@@ -0,0 +1,126 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+// Limits on how much a fetch may cost, for metered connections
+// like a phone tethered to another phone's data plan.
+//
+// There are two: a token bucket that caps the download rate,
+// so a fetch doesn't hog the link, and a byte budget for the whole
+// fetch. Text always gets fetched, since that's what we're here for,
+// but it counts against the budget; images only get fetched while
+// there's budget left for them, and not at all if they're bigger
+// than a set size. The ones that don't make it wait for a fetch
+// on an unmetered connection (see PendingImages).
+public class BandwidthBudget {
+
+    // Thrown when a download turns out, once the server says how big
+    // it is, to be one we should leave for later. It isn't a failure.
+    public static class DeferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public DeferException(String message) {
+            super(message);
+        }
+    }
+
+    // Token bucket: mRate bytes per second, saving up at most mBurst.
+    // 0 means no limit.
+    long mRate = 0;
+    long mBurst;
+    double mTokens;
+    long mLastRefill;
+
+    // The engine's, so waiting for tokens can be faked.
+    FetchEngine.Clock mClock;
+
+    // -1 means no limit.
+    long mBudget = -1;
+    long mMaxImageSize = -1;
+    // Bytes downloaded so far, plus what's promised to images
+    // that are still downloading.
+    long mUsed = 0;
+
+    public BandwidthBudget(long rate, long budget, long maxImageSize,
+                           FetchEngine.Clock clock) {
+        mClock = clock;
+        mRate = Math.max(0, rate);
+        // A second's worth. A read bigger than that just has to
+        // wait longer afterward.
+        mBurst = mRate;
+        mTokens = mBurst;
+        mLastRefill = mClock.now();
+        mBudget = budget;
+        mMaxImageSize = maxImageSize;
+    }
+
+    public Boolean limited() {
+        return mRate > 0 || mBudget >= 0 || mMaxImageSize >= 0;
+    }
+
+    // Wait until we're allowed to have read another n bytes.
+    // Several downloaders share the one bucket.
+    public void throttle(long n) throws InterruptedIOException {
+        if (mRate <= 0)
+            return;
+        long wait;
+        synchronized (this) {
+            long now = mClock.now();
+            mTokens = Math.min(mBurst,
+                               mTokens + (now - mLastRefill) * mRate / 1000.0);
+            mLastRefill = now;
+            // Take them now, going into debt if need be,
+            // and wait out the debt outside the lock.
+            mTokens -= n;
+            wait = (mTokens >= 0) ? 0 : (long)(-mTokens * 1000 / mRate);
+        }
+        if (wait <= 0)
+            return;
+        try {
+            mClock.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    // Is there room for an image of this size? -1 if we don't know
+    // yet, in which case we'll ask again when the server tells us.
+    public synchronized Boolean fits(long size) {
+        if (size < 0)
+            return mBudget < 0 || mUsed < mBudget;
+        if (mMaxImageSize >= 0 && size > mMaxImageSize)
+            return false;
+        return mBudget < 0 || mUsed + size <= mBudget;
+    }
+
+    // Like fits(), but if there's room, count the size against the
+    // budget right away, so several downloaders don't all take the
+    // last of it at once. settle() squares up afterward.
+    public synchronized Boolean reserveImage(long size) {
+        if (!fits(size))
+            return false;
+        if (size > 0)
+            mUsed += size;
+        return true;
+    }
+
+    // A download finished (or gave up) having fetched actual bytes,
+    // after reserving reserved.
+    public synchronized void settle(long reserved, long actual) {
+        mUsed += actual - reserved;
+    }
+
+    public synchronized long used() {
+        return mUsed;
+    }
+
+    // e.g. "Used 4.2 MB of 5.0 MB budget"
+    public synchronized String summary() {
+        String s = "Used " + FetchEngine.formatBytes(mUsed);
+        if (mBudget >= 0)
+            s += " of " + FetchEngine.formatBytes(mBudget) + " budget";
+        return s;
+    }
+}
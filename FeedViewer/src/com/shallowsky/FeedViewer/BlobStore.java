@@ -0,0 +1,349 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * BlobStore: keep each image once, no matter how many days or feeds
+ * it shows up in. Feeds repeat the same logos, avatars and share
+ * buttons day after day, and there's no sense downloading and storing
+ * a new copy every morning.
+ *
+ * Blobs live in LOCALDIR/.blobs/, named by their SHA-256.
+ * Each day directory has a .blobrefs file listing which of its
+ * files are which blob, one "relpath<TAB>hash" per line.
+ * Those files are the only record of who uses what: a blob's
+ * refcount is how many lines name it, counted when the store is
+ * first opened, so there's no separate count to get out of step.
+ *
+ * Where the filesystem allows it, the day's copy is a hard link to
+ * the blob, and nothing else needs to know about any of this.
+ * Otherwise (before Lollipop there's no API for link(), FAT SD cards
+ * can't do it anyway, and plain Java has no link() at all) the store
+ * gets a copy of its own, and so does each day: no space is saved,
+ * but an image already in the store is copied from there rather than
+ * downloaded. A day's file is never moved out of its directory, so
+ * the day can be copied, or read with something other than
+ * FeedViewer.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class BlobStore {
+
+    static final String BLOB_DIR = ".blobs";
+    static final String REFS_FILE = ".blobrefs";
+
+    File mRoot;       // the feeds directory, holding the day dirs
+    File mBlobDir;
+    // hash -> number of references
+    Map<String, Integer> mRefCounts = new HashMap<String, Integer>();
+    // day name -> (relpath -> hash), read as needed
+    Map<String, Map<String, String>> mDayRefs =
+        new HashMap<String, Map<String, String>>();
+
+    // FeedViewer and FeedFetcher each need the store for the same
+    // directory, and the counts have to agree, so share one per root.
+    static Map<String, BlobStore> sStores = new HashMap<String, BlobStore>();
+
+    public static synchronized BlobStore forDir(File root) {
+        String key = root.getAbsolutePath();
+        BlobStore store = sStores.get(key);
+        if (store == null) {
+            store = new BlobStore(root);
+            sStores.put(key, store);
+        }
+        return store;
+    }
+
+    private BlobStore(File root) {
+        mRoot = root;
+        mBlobDir = new File(root, BLOB_DIR);
+        mBlobDir.mkdirs();
+
+        File[] days = root.listFiles();
+        if (days == null)
+            return;
+        for (File day : days) {
+            if (!day.isDirectory() || day.getName().startsWith("."))
+                continue;
+            for (String hash : dayRefs(day.getName()).values())
+                incRef(hash);
+        }
+        EngineLog.d("BlobStore", mRefCounts.size() + " blobs in " + mBlobDir);
+    }
+
+    public File blobFile(String hash) {
+        return new File(mBlobDir, hash);
+    }
+
+    public synchronized Boolean has(String hash) {
+        return hash != null && blobFile(hash).exists();
+    }
+
+    // Make file (somewhere in a day directory) refer to a blob
+    // we already have. Returns false if we don't have it after all.
+    public synchronized Boolean place(String hash, File file)
+        throws IOException {
+        String[] where = split(file);
+        if (where == null || !has(hash))
+            return false;
+        if (!file.exists() && !link(blobFile(hash), file))
+            copy(blobFile(hash), file);
+        addRef(where[0], where[1], hash);
+        return true;
+    }
+
+    // file was just downloaded: put it in the store, or if we already
+    // had it, swap the new copy for a link to the old one.
+    // Either way it stays where it is.
+    public synchronized void adopt(File file, String hash)
+        throws IOException {
+        String[] where = split(file);
+        if (where == null)
+            return;
+        File blob = blobFile(hash);
+        if (blob.exists()) {
+            // Link to a new name, then rename it over the copy we
+            // just got, so the file is never missing. If we can't
+            // link, we just keep both copies.
+            File linked = new File(file.getPath() + ".blob");
+            if (link(blob, linked) && !linked.renameTo(file))
+                linked.delete();
+        } else if (!link(file, blob)) {
+            // No links here, so the store needs a copy of its own
+            // for later days to be copied from.
+            copy(file, blob);
+        }
+        addRef(where[0], where[1], hash);
+    }
+
+    // ROOT/day/some/path -> { "day", "some/path" },
+    // or null if it isn't inside a day directory.
+    private String[] split(File file) {
+        String path = file.getAbsolutePath();
+        String root = mRoot.getAbsolutePath() + File.separator;
+        if (!path.startsWith(root))
+            return null;
+        path = path.substring(root.length());
+        int slash = path.indexOf(File.separatorChar);
+        if (slash < 0)
+            return null;
+        return new String[] { path.substring(0, slash),
+                              path.substring(slash + 1) };
+    }
+
+    // dir is about to be deleted: either a day directory or something
+    // inside one (a feed, or a single file). Drop its references, and
+    // delete any blobs nobody else is using.
+    public synchronized void release(File dir) {
+        String day, path, prefix;
+        String[] where = split(dir);
+        if (where != null) {
+            day = where[0];
+            path = where[1];
+            prefix = path + "/";
+        } else if (dir.getParentFile() != null
+                   && dir.getParentFile().getAbsolutePath()
+                          .equals(mRoot.getAbsolutePath())) {
+            day = dir.getName();
+            path = null;
+            prefix = "";
+        } else {
+            return;
+        }
+
+        Map<String, String> refs = dayRefs(day);
+        List<String> gone = new ArrayList<String>();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            if (ref.getKey().equals(path) || ref.getKey().startsWith(prefix))
+                gone.add(ref.getKey());
+        }
+        if (gone.isEmpty())
+            return;
+        for (String relpath : gone) {
+            String hash = refs.remove(relpath);
+            if (decRef(hash) == 0) {
+                EngineLog.d("BlobStore",
+                            "Last reference gone: deleting " + hash);
+                blobFile(hash).delete();
+            }
+        }
+        saveDayRefs(day, refs);
+    }
+
+    /********** Refcounts ******/
+
+    private void incRef(String hash) {
+        Integer n = mRefCounts.get(hash);
+        mRefCounts.put(hash, (n == null) ? 1 : n + 1);
+    }
+
+    private int decRef(String hash) {
+        Integer n = mRefCounts.get(hash);
+        if (n == null || n <= 1) {
+            mRefCounts.remove(hash);
+            return 0;
+        }
+        mRefCounts.put(hash, n - 1);
+        return n - 1;
+    }
+
+    private void addRef(String day, String relpath, String hash)
+        throws IOException {
+        Map<String, String> refs = dayRefs(day);
+        String old = refs.put(relpath, hash);
+        if (hash.equals(old))
+            return;
+        incRef(hash);
+        if (old != null)
+            decRef(old);
+        // Appending is enough: when a relpath appears twice,
+        // the later line wins.
+        PrintWriter pw = new PrintWriter(new FileWriter(refsFile(day), true));
+        pw.print(relpath + "\t" + hash + "\n");
+        pw.close();
+    }
+
+    private File refsFile(String day) {
+        return new File(new File(mRoot, day), REFS_FILE);
+    }
+
+    private Map<String, String> dayRefs(String day) {
+        Map<String, String> refs = mDayRefs.get(day);
+        if (refs != null)
+            return refs;
+        refs = new HashMap<String, String>();
+        File f = refsFile(day);
+        if (f.exists()) {
+            try {
+                BufferedReader br = new BufferedReader(new FileReader(f));
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0)
+                        refs.put(line.substring(0, tab),
+                                 line.substring(tab + 1));
+                }
+                br.close();
+            } catch (IOException e) {
+                EngineLog.d("BlobStore", "Couldn't read " + f + ": " + e);
+            }
+        }
+        mDayRefs.put(day, refs);
+        return refs;
+    }
+
+    private void saveDayRefs(String day, Map<String, String> refs) {
+        File f = refsFile(day);
+        if (refs.isEmpty()) {
+            f.delete();
+            return;
+        }
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(f));
+            for (Map.Entry<String, String> ref : refs.entrySet())
+                pw.print(ref.getKey() + "\t" + ref.getValue() + "\n");
+            pw.close();
+        } catch (IOException e) {
+            EngineLog.d("BlobStore", "Couldn't write " + f + ": " + e);
+        }
+    }
+
+    /********** Files ******/
+
+    // android.system.Os.link() only exists from Lollipop on,
+    // so look it up at runtime. null if we don't have it.
+    static Method sLink = null;
+    static Boolean sLookedForLink = false;
+
+    // Hard link target to blob. Returns false if we can't.
+    private static Boolean link(File blob, File target) {
+        synchronized (BlobStore.class) {
+            if (!sLookedForLink) {
+                sLookedForLink = true;
+                try {
+                    sLink = Class.forName("android.system.Os")
+                        .getMethod("link", String.class, String.class);
+                } catch (Exception e) {
+                    EngineLog.d("BlobStore", "No hard links: " + e);
+                }
+            }
+        }
+        if (sLink == null)
+            return false;
+        target.getParentFile().mkdirs();
+        try {
+            sLink.invoke(null, blob.getPath(), target.getPath());
+            return true;
+        } catch (Exception e) {
+            EngineLog.d("BlobStore", "Couldn't link " + target + ": " + e);
+            return false;
+        }
+    }
+
+    // For when we can't link: a copy of from, written to a .part
+    // file first so a half-written one never looks finished.
+    private static void copy(File from, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        File partial = new File(target.getPath() + FetchEngine.PARTIAL_SUFFIX);
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(partial);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) != -1)
+                    out.write(buf, 0, len);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!partial.renameTo(target)) {
+            partial.delete();
+            throw new IOException("Couldn't rename " + partial);
+        }
+    }
+
+    // The hex SHA-256 of a file's contents.
+    public static String hashFile(File file) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-256: " + e);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                md.update(buf, 0, len);
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+}
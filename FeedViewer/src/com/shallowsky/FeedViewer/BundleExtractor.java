@@ -0,0 +1,293 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * BundleExtractor: unpack a whole day's feeds from a single archive
+ * (tar.gz or zip) as it streams in from the server, so we make one
+ * request instead of hundreds.
+ *
+ * Nothing is buffered beyond the DownloadWriter's buffer: each entry
+ * goes straight from the network to a partial file, by way of the same
+ * DownloadWriter a regular download uses (so it gets the same pooled
+ * buffers, preallocation, syncing and disk stats), and is renamed to
+ * its real name when it's complete.
+ * On the way it's checked against MANIFEST's size and checksum, as a
+ * regular download is, and one that doesn't match is thrown away.
+ * So an interrupted extraction leaves only whole, good files behind,
+ * and the per-file MANIFEST pass afterward picks up the rest.
+ *
+ * The listener is asked between buffers whether to stop, so a Stop
+ * doesn't have to wait for the whole archive.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class BundleExtractor {
+
+    // Since Java doesn't allow passing callback functions:
+    // something to hear about each file as it's extracted,
+    // and to decide which files we want at all.
+    public interface Listener {
+        Boolean wanted(String relpath);
+        // What to check relpath against as it's written.
+        FileVerifier verifier(String relpath);
+        // sha256 is null unless the verifier was computing one.
+        void extracted(String relpath, long bytes, String sha256);
+        // Should we stop now?
+        Boolean cancelled();
+    }
+
+    File mDestDir;
+    DownloadWriter mWriter;
+    Listener mListener;
+    // Archives of the dated directory may have it as their top level,
+    // e.g. 10-18-Sun/slashdot/index.html; if so, strip it off.
+    String mStripPrefix = null;
+    // Only for skipping what we don't want.
+    byte[] mBuffer = new byte[8192];
+    int mNumFiles = 0;
+    // Entries that didn't match MANIFEST.
+    int mNumBad = 0;
+
+    public BundleExtractor(File destdir, DownloadWriter writer,
+                           Listener listener) {
+        mDestDir = destdir;
+        mWriter = writer;
+        mListener = listener;
+    }
+
+    public void setStripPrefix(String prefix) {
+        mStripPrefix = prefix + "/";
+    }
+
+    public int numFiles() {
+        return mNumFiles;
+    }
+
+    public int numBad() {
+        return mNumBad;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (mListener.cancelled())
+            throw new InterruptedIOException("Stopped");
+    }
+
+    /********** zip ******/
+
+    public void extractZip(InputStream in) throws IOException {
+        ZipInputStream zin = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            checkCancelled();
+            // The size is -1 if it's only in a descriptor after the data.
+            if (!entry.isDirectory())
+                save(entry.getName(), zin, entry.getSize());
+            zin.closeEntry();
+        }
+    }
+
+    /********** tar.gz ******/
+
+    static final int TAR_BLOCK = 512;
+
+    public void extractTarGz(InputStream in) throws IOException {
+        extractTar(new GZIPInputStream(in, 8192));
+    }
+
+    public void extractTar(InputStream in) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+
+        while (readFully(in, header)) {
+            // Two zero blocks mark the end; one is enough for us.
+            if (header[0] == 0)
+                return;
+
+            String name = tarString(header, 0, 100);
+            long size = tarOctal(header, 124, 12);
+            char type = (char)header[156];
+            if (new String(header, 257, 5, "ISO-8859-1").equals("ustar")) {
+                String prefix = tarString(header, 345, 155);
+                if (prefix.length() > 0)
+                    name = prefix + "/" + name;
+            }
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+
+            if (type == 'L' || type == 'x') {
+                // GNU long name, or a pax header that might hold one.
+                byte[] data = new byte[(int)size];
+                if (!readFully(in, data))
+                    throw new IOException("Truncated tar header");
+                skip(in, padding(size));
+                longName = (type == 'L') ? cString(data) : paxPath(data);
+                continue;
+            }
+
+            if (type == '0' || type == '\0' || type == '7') {
+                TarEntryStream entry = new TarEntryStream(in, size);
+                save(name, entry, size);
+                skip(in, entry.mRemaining);
+            } else {
+                // Directories, links and the like: we make directories
+                // as needed, and feedme doesn't write links.
+                skip(in, size);
+            }
+            skip(in, padding(size));
+        }
+    }
+
+    private static long padding(long size) {
+        return (TAR_BLOCK - (size % TAR_BLOCK)) % TAR_BLOCK;
+    }
+
+    private static String tarString(byte[] buf, int off, int len)
+        throws IOException {
+        int end = off;
+        while (end < off + len && buf[end] != 0)
+            ++end;
+        return new String(buf, off, end - off, "UTF-8");
+    }
+
+    private static String cString(byte[] buf) throws IOException {
+        return tarString(buf, 0, buf.length);
+    }
+
+    private static long tarOctal(byte[] buf, int off, int len) {
+        long val = 0;
+        for (int i = off; i < off + len; ++i) {
+            if (buf[i] == 0 || buf[i] == ' ')
+                continue;
+            val = val * 8 + (buf[i] - '0');
+        }
+        return val;
+    }
+
+    // pax extended headers are lines of "LEN key=value\n".
+    private static String paxPath(byte[] data) throws IOException {
+        String pax = new String(data, "UTF-8");
+        for (String line : pax.split("\n")) {
+            int sp = line.indexOf(' ');
+            if (sp >= 0 && line.startsWith("path=", sp + 1))
+                return line.substring(sp + 6);
+        }
+        return null;
+    }
+
+    private static Boolean readFully(InputStream in, byte[] buf)
+        throws IOException {
+        int got = 0;
+        while (got < buf.length) {
+            int n = in.read(buf, got, buf.length - got);
+            if (n == -1) {
+                if (got == 0)
+                    return false;
+                throw new IOException("Truncated tar archive");
+            }
+            got += n;
+        }
+        return true;
+    }
+
+    private void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            checkCancelled();
+            int got = in.read(mBuffer, 0, (int)Math.min(n, mBuffer.length));
+            if (got == -1)
+                throw new IOException("Truncated tar archive");
+            n -= got;
+        }
+    }
+
+    // The data of one tar entry, without running on into the next.
+    static class TarEntryStream extends InputStream {
+        InputStream mIn;
+        long mRemaining;
+
+        TarEntryStream(InputStream in, long size) {
+            mIn = in;
+            mRemaining = size;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0)
+                return -1;
+            int n = mIn.read(b, off, (int)Math.min(len, mRemaining));
+            if (n > 0)
+                mRemaining -= n;
+            return n;
+        }
+    }
+
+    /********** Writing files ******/
+
+    // Copy one entry to mDestDir/name by way of a partial file.
+    // size is -1 if we don't know it in advance.
+    private void save(String name, InputStream in, long size)
+        throws IOException {
+        // Don't let a bad archive write outside the day directory.
+        while (name.startsWith("./"))
+            name = name.substring(2);
+        if (mStripPrefix != null && name.startsWith(mStripPrefix))
+            name = name.substring(mStripPrefix.length());
+        if (name.startsWith("/") || name.equals("..")
+            || name.startsWith("../") || name.contains("/../")) {
+            return;
+        }
+        if (!mListener.wanted(name))
+            return;
+
+        File file = new File(mDestDir, name);
+        if (file.exists())
+            return;
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Can't make directory " + dir);
+
+        File partial = new File(file.getPath() + FetchEngine.PARTIAL_SUFFIX);
+        FileVerifier verifier = mListener.verifier(name);
+        DownloadWriter.Sink sink = mWriter.open(partial, false, size);
+        long total = 0;
+        try {
+            int len;
+            while ((len = sink.transfer(in, verifier)) != -1) {
+                total += len;
+                checkCancelled();
+            }
+            sink.finish();
+        } finally {
+            sink.close();
+        }
+        if (size >= 0 && total != size)
+            throw new IOException("Only got " + total + " of " + size
+                                  + " bytes of " + name);
+        try {
+            verifier.check(name, total);
+        } catch (FileVerifier.ChecksumException e) {
+            // The rest of the archive may be fine: just leave this one
+            // for the per-file pass to download.
+            EngineLog.d("BundleExtractor", e.getMessage());
+            partial.delete();
+            ++mNumBad;
+            return;
+        }
+        if (!partial.renameTo(file))
+            throw new IOException("Couldn't rename " + partial
+                                  + " to " + file);
+        ++mNumFiles;
+        mListener.extracted(name, total, verifier.sha256());
+    }
+}
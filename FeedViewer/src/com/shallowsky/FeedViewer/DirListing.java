@@ -0,0 +1,223 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Reads Apache directory listings straight off the network, a buffer
+// at a time, and keeps track of what's in the directory from one poll
+// to the next, so the wait for feedme can say what's new rather than
+// re-reading and re-checking the whole listing every time.
+//
+// We only care about the links after "Parent Directory": before that
+// come the column headings (Name, Last modified ...), which are links
+// too. Anything else in the page -- the table, icons, sizes -- we skip
+// over without keeping.
+//
+// Entries are told apart by their link targets (hrefs), not the link
+// text: Apache truncates long names in the text ("longfeedna..>"),
+// and doesn't URL-encode it, so the text can't be used to fetch them.
+public class DirListing {
+
+    // Since Java doesn't allow passing callback functions.
+    // href and text are only good until entry() returns:
+    // call toString() on them to keep them.
+    public interface Listener {
+        void entry(CharSequence href, CharSequence text);
+    }
+
+    // What changed between one look at a directory and the next:
+    // the hrefs, still URL-encoded.
+    public static class Diff {
+        List<String> mAdded = new ArrayList<String>();
+        List<String> mRemoved = new ArrayList<String>();
+
+        public List<String> added() {
+            return mAdded;
+        }
+
+        public List<String> removed() {
+            return mRemoved;
+        }
+
+        public Boolean isEmpty() {
+            return mAdded.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
+    static final String PARENT = "Parent Directory";
+
+    // Tags longer than this are nothing we want, so don't keep them.
+    static final int MAX_TAG = 4096;
+
+    // Reused from one parse to the next.
+    char[] mBuf = new char[8192];
+    StringBuilder mTag = new StringBuilder();
+    StringBuilder mHref = new StringBuilder();
+    StringBuilder mText = new StringBuilder();
+
+    // The hrefs in the last listing we read.
+    Set<String> mHrefs = new HashSet<String>();
+
+    // Read a listing and say what's changed since the last one.
+    public Diff update(InputStream in) throws IOException {
+        final Diff diff = new Diff();
+        final Set<String> seen = new HashSet<String>();
+        parse(new InputStreamReader(in, "UTF-8"), new Listener() {
+                public void entry(CharSequence href, CharSequence text) {
+                    if (href.length() == 0)
+                        return;
+                    String name = href.toString();
+                    if (seen.add(name) && !mHrefs.contains(name))
+                        diff.mAdded.add(name);
+                }
+            });
+        // Anything we didn't see this time is gone.
+        for (String name : mHrefs)
+            if (!seen.contains(name))
+                diff.mRemoved.add(name);
+        mHrefs = seen;
+        return diff;
+    }
+
+    // Just the link targets from one listing, e.g. to queue
+    // everything in it. These rather than the link text, which
+    // Apache truncates for long filenames.
+    public static List<String> hrefs(InputStream in) throws IOException {
+        final List<String> hrefs = new ArrayList<String>();
+        new DirListing().parse(new InputStreamReader(in, "UTF-8"),
+                               new Listener() {
+                public void entry(CharSequence href, CharSequence text) {
+                    if (href.length() > 0)
+                        hrefs.add(href.toString());
+                }
+            });
+        return hrefs;
+    }
+
+    // Hand each link after Parent Directory to listener.
+    // No regexps, and nothing kept but the current tag or link.
+    // This runs for every character of every poll, hence the
+    // plain booleans.
+    public void parse(Reader in, Listener listener) throws IOException {
+        boolean started = false;
+        boolean inTag = false;
+        boolean inLink = false;
+        // Is the tag we're in one we care about? Only <a and </a are,
+        // and we can tell from the first two characters.
+        boolean keepTag = true;
+        mTag.setLength(0);
+        mHref.setLength(0);
+        mText.setLength(0);
+        int n;
+        while ((n = in.read(mBuf)) > 0) {
+            for (int i = 0; i < n; ++i) {
+                char c = mBuf[i];
+                if (inTag) {
+                    if (c != '>') {
+                        if (keepTag && mTag.length() < MAX_TAG) {
+                            mTag.append(c);
+                            if (mTag.length() == 2)
+                                keepTag = isLinkStart(mTag)
+                                    || isLinkEnd(mTag);
+                        }
+                        continue;
+                    }
+                    inTag = false;
+                    if (!keepTag)
+                        continue;
+                    if (isLinkStart(mTag)) {
+                        inLink = true;
+                        getHref(mTag, mHref);
+                        mText.setLength(0);
+                    } else if (inLink && isLinkEnd(mTag)) {
+                        inLink = false;
+                        if (started)
+                            listener.entry(mHref, mText);
+                        else if (equals(mText, PARENT))
+                            started = true;
+                    }
+                } else if (c == '<') {
+                    inTag = true;
+                    keepTag = true;
+                    mTag.setLength(0);
+                } else if (inLink) {
+                    mText.append(c);
+                }
+            }
+        }
+    }
+
+    // <a followed by whitespace, any case.
+    static Boolean isLinkStart(CharSequence tag) {
+        return tag.length() > 1
+            && (tag.charAt(0) == 'a' || tag.charAt(0) == 'A')
+            && Character.isWhitespace(tag.charAt(1));
+    }
+
+    static Boolean isLinkEnd(CharSequence tag) {
+        int len = tag.length();
+        while (len > 0 && Character.isWhitespace(tag.charAt(len - 1)))
+            --len;
+        return len == 2 && tag.charAt(0) == '/'
+            && (tag.charAt(1) == 'a' || tag.charAt(1) == 'A');
+    }
+
+    // Copy the value of the href attribute of tag into href,
+    // or leave href empty if there isn't one.
+    static void getHref(CharSequence tag, StringBuilder href) {
+        href.setLength(0);
+        int len = tag.length();
+        for (int i = 1; i + 4 < len; ++i) {
+            if (!regionMatchesIgnoreCase(tag, i, "href")
+                || !Character.isWhitespace(tag.charAt(i - 1)))
+                continue;
+            int j = i + 4;
+            while (j < len && Character.isWhitespace(tag.charAt(j)))
+                ++j;
+            if (j >= len || tag.charAt(j) != '=')
+                continue;
+            ++j;
+            while (j < len && Character.isWhitespace(tag.charAt(j)))
+                ++j;
+            if (j >= len)
+                return;
+            char quote = tag.charAt(j);
+            if (quote == '"' || quote == '\'')
+                ++j;
+            else
+                quote = 0;
+            for ( ; j < len; ++j) {
+                char c = tag.charAt(j);
+                if (quote != 0 ? c == quote : Character.isWhitespace(c))
+                    break;
+                href.append(c);
+            }
+            return;
+        }
+    }
+
+    static Boolean regionMatchesIgnoreCase(CharSequence s, int off,
+                                           String what) {
+        if (off + what.length() > s.length())
+            return false;
+        for (int i = 0; i < what.length(); ++i)
+            if (Character.toLowerCase(s.charAt(off + i)) != what.charAt(i))
+                return false;
+        return true;
+    }
+
+    static Boolean equals(CharSequence a, CharSequence b) {
+        if (a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); ++i)
+            if (a.charAt(i) != b.charAt(i))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,105 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.File;
+import java.io.IOException;
+
+// One file to be downloaded: where it comes from, where it goes,
+// and, once a worker has finished with it, how it went.
+// Jobs sort in the order they should be downloaded.
+public class DownloadJob implements Comparable<DownloadJob> {
+
+    // Priority classes, most urgent first. A feed's index page is
+    // enough to start reading it; then come the articles, then the
+    // styles that make them look right, then anything else,
+    // and images last of all.
+    static final int PRI_INDEX = 0;
+    static final int PRI_HTML = 1;
+    static final int PRI_CSS = 2;
+    static final int PRI_OTHER = 3;
+    static final int PRI_IMAGE = 4;
+    static final String[] PRI_NAMES = {
+        "index", "html", "css", "other", "image"
+    };
+
+    // The path relative to the day directory, as listed in MANIFEST.
+    String mRelPath;
+    String mUrl;
+    File mFile;
+
+    int mPriority;
+    // Size in bytes, if we know it before downloading; else -1.
+    long mSize = -1;
+    // SHA-256 of the contents, if MANIFEST told us; else null.
+    String mHash = null;
+    // Order of submission, to keep things stable within a class.
+    long mSeq = 0;
+    int mAttempts = 0;
+    // A failed job goes to the back of the line (behind everything
+    // that hasn't been tried yet), no sooner than mNotBefore.
+    Boolean mRetry = false;
+    long mNotBefore = 0;
+    // Its last chance, in the final pass.
+    Boolean mFinalTry = false;
+    // Which day it's for, when catching up on days we missed:
+    // 0 for today, 1 for the newest missed day and so on.
+    // Newer days go first.
+    int mAge = 0;
+    // Where to note that it's started and finished, or null.
+    FetchJournal mJournal = null;
+
+    // Filled in by the worker thread.
+    IOException mError = null;
+    long mBytes = 0;
+    // Did it match a checksum from MANIFEST?
+    Boolean mVerified = false;
+
+    public DownloadJob(String relpath, String url, File file) {
+        mRelPath = relpath;
+        mUrl = url;
+        mFile = file;
+        mPriority = classify(relpath);
+    }
+
+    public Boolean succeeded() {
+        return mError == null;
+    }
+
+    static int classify(String relpath) {
+        String name = relpath.toLowerCase();
+        int slash = name.lastIndexOf('/');
+        if (slash >= 0)
+            name = name.substring(slash + 1);
+        if (name.equals("index.html") || name.equals("index.htm"))
+            return PRI_INDEX;
+        if (name.endsWith(".html") || name.endsWith(".htm"))
+            return PRI_HTML;
+        if (name.endsWith(".css"))
+            return PRI_CSS;
+        if (FetchEngine.isImage(name))
+            return PRI_IMAGE;
+        return PRI_OTHER;
+    }
+
+    // Retries after everything else; then newest day first;
+    // then by class; images smallest
+    // first (unknown sizes after known ones), so the most pictures
+    // show up soonest; otherwise first come, first served.
+    public int compareTo(DownloadJob other) {
+        if (!mRetry.equals(other.mRetry))
+            return mRetry ? 1 : -1;
+        if (mAge != other.mAge)
+            return mAge < other.mAge ? -1 : 1;
+        if (mPriority != other.mPriority)
+            return mPriority < other.mPriority ? -1 : 1;
+        if (mPriority == PRI_IMAGE && mSize != other.mSize) {
+            if (mSize < 0)
+                return 1;
+            if (other.mSize < 0)
+                return -1;
+            return mSize < other.mSize ? -1 : 1;
+        }
+        if (mSeq != other.mSeq)
+            return mSeq < other.mSeq ? -1 : 1;
+        return 0;
+    }
+}
@@ -0,0 +1,177 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * DownloadWriter: the disk side of downloading.
+ *
+ * Network reads come in whatever sizes the socket feels like,
+ * often a KB or two, and SD cards are slow at lots of little writes.
+ * So each download fills a big buffer from the network and writes
+ * it to a FileChannel in one go. The buffers are pooled, since with
+ * hundreds of files a day there's no sense making a new one for each.
+ *
+ * Optionally, files can be preallocated to their full length up front
+ * when the server says how long they'll be (on FAT, which most SD
+ * cards are, that saves growing the cluster chain a write at a time),
+ * and flushed to the device before they're renamed into place.
+ *
+ * It also keeps count of how much it's written and how long the
+ * writes took, to see what the storage is really managing.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DownloadWriter {
+
+    // When to make sure a file has actually reached the storage.
+    // Never (the default): leave it to the kernel, like before.
+    // Each file: before renaming it to its real name, so a file under
+    // its real name is always complete even after a power cut.
+    static final int SYNC_NEVER = 0;
+    static final int SYNC_EACH_FILE = 1;
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    int mBufferSize = DEFAULT_BUFFER_SIZE;
+    int mSyncPolicy = SYNC_NEVER;
+    Boolean mPreallocate = false;
+
+    List<ByteBuffer> mPool = new ArrayList<ByteBuffer>();
+
+    AtomicLong mBytesWritten = new AtomicLong(0);
+    AtomicLong mWriteNanos = new AtomicLong(0);
+    AtomicInteger mFilesWritten = new AtomicInteger(0);
+
+    // Changing it only affects buffers made from now on;
+    // ones already in the pool get dropped.
+    public synchronized void setBufferSize(int size) {
+        mBufferSize = Math.max(4096, size);
+        mPool.clear();
+    }
+
+    public void setSyncPolicy(int policy) {
+        mSyncPolicy = policy;
+    }
+
+    // A crash partway through a preallocated file leaves a partial
+    // file padded out to full length, which resuming would take at
+    // its word; so this is best used with MANIFEST checksums, which
+    // would catch that and start the file over.
+    public void setPreallocate(Boolean preallocate) {
+        mPreallocate = preallocate;
+    }
+
+    private synchronized ByteBuffer takeBuffer() {
+        if (!mPool.isEmpty())
+            return mPool.remove(mPool.size() - 1);
+        return ByteBuffer.allocate(mBufferSize);
+    }
+
+    private synchronized void giveBuffer(ByteBuffer buf) {
+        if (buf.capacity() == mBufferSize)
+            mPool.add(buf);
+    }
+
+    // e.g. "Disk: 12.3 MB in 140 files, 8.1 MB/s"
+    public String stats() {
+        long bytes = mBytesWritten.get();
+        long millis = mWriteNanos.get() / 1000000;
+        String s = "Disk: " + FetchEngine.formatBytes(bytes) + " in "
+            + mFilesWritten.get() + " files";
+        if (millis > 0)
+            s += ", " + FetchEngine.formatBytes(bytes * 1000 / millis) + "/s";
+        return s;
+    }
+
+    // Start writing file, from the beginning or, if append is true,
+    // adding to what's there. expected is how long the whole file
+    // will be, or -1 if we don't know.
+    public Sink open(File file, Boolean append, long expected)
+        throws IOException {
+        return new Sink(file, append, expected);
+    }
+
+    // One file being written.
+    public class Sink {
+        RandomAccessFile mRaf;
+        FileChannel mChannel;
+        ByteBuffer mBuffer;
+        Boolean mPreallocated = false;
+
+        Sink(File file, Boolean append, long expected) throws IOException {
+            mRaf = new RandomAccessFile(file, "rw");
+            mChannel = mRaf.getChannel();
+            if (append)
+                mChannel.position(mChannel.size());
+            else
+                mChannel.truncate(0);
+            if (mPreallocate && expected > mChannel.position()) {
+                mRaf.setLength(expected);
+                mPreallocated = true;
+            }
+            mBuffer = takeBuffer();
+        }
+
+        // Read from in until the buffer is full or in runs out,
+        // feed it to the verifier, and write it out.
+        // Returns how many bytes that was, or -1 at the end.
+        public int transfer(InputStream in, FileVerifier verifier)
+            throws IOException {
+            byte[] array = mBuffer.array();
+            int got = 0;
+            while (got < array.length) {
+                int n = in.read(array, got, array.length - got);
+                if (n == -1)
+                    break;
+                got += n;
+            }
+            if (got == 0)
+                return -1;
+            verifier.update(array, 0, got);
+
+            long start = System.nanoTime();
+            mBuffer.clear();
+            mBuffer.limit(got);
+            while (mBuffer.hasRemaining())
+                mChannel.write(mBuffer);
+            mWriteNanos.addAndGet(System.nanoTime() - start);
+            mBytesWritten.addAndGet(got);
+            return got;
+        }
+
+        // Everything's been written: sync it if that's the policy.
+        public void finish() throws IOException {
+            long start = System.nanoTime();
+            if (mPreallocated)
+                mChannel.truncate(mChannel.position());
+            if (mSyncPolicy == SYNC_EACH_FILE)
+                mChannel.force(false);
+            mWriteNanos.addAndGet(System.nanoTime() - start);
+            mFilesWritten.incrementAndGet();
+        }
+
+        // Always call this, finished or not.
+        public void close() throws IOException {
+            if (mBuffer == null)
+                return;
+            giveBuffer(mBuffer);
+            mBuffer = null;
+            try {
+                // If we stopped early, don't leave preallocated
+                // space looking like data we have.
+                if (mPreallocated)
+                    mChannel.truncate(mChannel.position());
+            } finally {
+                mRaf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.shallowsky.FeedViewer;
+
+// Debug logging for FetchEngine and the classes it uses, which can't
+// call android.util.Log directly since they have to run off the phone
+// too. Whoever runs the engine says where the messages go: FeedFetcher
+// sends them to the Android log, a command-line tool might print them.
+// Until someone does, they go nowhere.
+public class EngineLog {
+
+    public interface Sink {
+        void d(String tag, String msg);
+    }
+
+    static volatile Sink sSink = null;
+
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void d(String tag, String msg) {
+        Sink sink = sSink;
+        if (sink != null)
+            sink.d(tag, msg);
+    }
+}
@@ -1,62 +1,178 @@
 package com.shallowsky.FeedViewer;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.TextView;
 import android.widget.ScrollView;
 
 // Since Java doesn't allow passing callback functions,
 // here's an object to log progress to the FeedViewer's TextView widget.
+//
+// Appending to the TextView and scrolling for every line made the dialog
+// flash and crawl on big fetches, since each one meant laying out all
+// the text again. So lines are collected here, the last MAX_LINES of them
+// kept in a ring buffer, and the TextView is redrawn at most every
+// RENDER_INTERVAL milliseconds with whatever's accumulated.
+//
+// log() and fileDone() can be called from any thread; the drawing
+// always happens on the UI thread. It's posted through a Handler on
+// the main looper rather than through the views: before Nougat, a
+// view that isn't attached (say the dialog was dismissed with Back)
+// queues posts from other threads where they never run, and then
+// nothing would ever be drawn again.
 public class FeedProgress {
     TextView mTextView;
     ScrollView mScrollView;
+    Handler mHandler = new Handler(Looper.getMainLooper());
+
+    static final long RENDER_INTERVAL = 100;    // milliseconds
+    static final int MAX_LINES = 500;
+
+    // The last MAX_LINES complete lines, oldest at mFirst,
+    // plus whatever's been logged since the last newline.
+    String[] mLines = new String[MAX_LINES];
+    int mFirst = 0;
+    int mNumLines = 0;
+    StringBuilder mCurLine = new StringBuilder();
+
+    // Only touched with the lock held, like everything below.
+    Boolean mRenderPending = false;
+
+    // In compact mode, finished files only update the summary
+    // rather than each getting a line of their own.
+    Boolean mCompact = false;
+
+    // For the summary line.
+    int mFilesDone = 0;
+    int mFilesTotal = 0;
+    long mBytes = 0;
+    long mStartTime = 0;
+    // Anything else worth showing with it, like how many
+    // downloads are running at once.
+    String mStatus = null;
+
+    Runnable mRenderer = new Runnable() {
+            public void run() {
+                render();
+            }
+        };
 
     public FeedProgress(TextView tv, ScrollView sv) {
         mTextView = tv;
         mScrollView = sv;
     }
 
-    public void log(String s) {
-        mTextView.append(s);
+    public synchronized void log(String s) {
+        int start = 0;
+        int nl;
+        while ((nl = s.indexOf('\n', start)) >= 0) {
+            mCurLine.append(s, start, nl);
+            addLine(mCurLine.toString());
+            mCurLine.setLength(0);
+            start = nl + 1;
+        }
+        mCurLine.append(s, start, s.length());
+        scheduleRender();
+    }
+
+    // A file finished downloading: done of total so far.
+    public synchronized void fileDone(String name, long bytes,
+                                      int done, int total) {
+        if (mStartTime == 0)
+            mStartTime = System.currentTimeMillis();
+        mFilesDone = done;
+        mFilesTotal = total;
+        mBytes += bytes;
+        if (!mCompact)
+            log("Saved " + name + " (" + done + "/" + total + ")\n");
+        else
+            scheduleRender();
+    }
+
+    public synchronized void setStatus(String status) {
+        mStatus = status;
+        scheduleRender();
+    }
+
+    public synchronized Boolean toggleCompact() {
+        mCompact = !mCompact;
+        scheduleRender();
+        return mCompact;
+    }
+
+    // Files done / total, bytes, and rate.
+    public synchronized String summary() {
+        if (mFilesTotal == 0)
+            return "";
+        long secs = (System.currentTimeMillis() - mStartTime) / 1000;
+        String s = "Files: " + mFilesDone + "/" + mFilesTotal
+            + ", " + FetchEngine.formatBytes(mBytes);
+        if (secs > 0)
+            s += ", " + FetchEngine.formatBytes(mBytes / secs) + "/s";
+        if (mStatus != null)
+            s += "; " + mStatus;
+        return s;
+    }
+
+    private void addLine(String line) {
+        if (mNumLines < MAX_LINES) {
+            mLines[(mFirst + mNumLines) % MAX_LINES] = line;
+            ++mNumLines;
+        } else {
+            // Full: drop the oldest.
+            mLines[mFirst] = line;
+            mFirst = (mFirst + 1) % MAX_LINES;
+        }
+    }
+
+    // Call with the lock held.
+    private void scheduleRender() {
+        if (mRenderPending)
+            return;
+        mRenderPending = true;
+        mHandler.postDelayed(mRenderer, RENDER_INTERVAL);
+    }
 
-        // The rest of this class is an attempt to get the dialog
-        // to scroll to the bottom any time it's shown,
-        // preferably without flashing horribly or hanging the UI,
-        // which most of these solutions do if they do anything at all.
+    // On the UI thread: show everything that's accumulated,
+    // then scroll to the bottom once.
+    private void render() {
+        String text;
+        synchronized (this) {
+            mRenderPending = false;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mNumLines; ++i)
+                sb.append(mLines[(mFirst + i) % MAX_LINES]).append('\n');
+            sb.append(mCurLine);
+            String summary = summary();
+            if (summary.length() > 0) {
+                if (mCurLine.length() > 0)
+                    sb.append('\n');
+                sb.append(summary);
+            }
+            text = sb.toString();
+        }
+        mTextView.setText(text);
 
         // Scroll to the bottom. http://stackoverflow.com/a/4612082
         // (The easier and top-rated solution in that thread didn't work
         // because layout was null.)
-        mScrollView.post(new Runnable() {
+        mHandler.post(new Runnable() {
             public void run() {
                 mScrollView.fullScroll(View.FOCUS_DOWN);
             }
         });
 
-        /* Here are some more non-working solutions, from
+        /* Some things that didn't work, from
          * http://stackoverflow.com/questions/19826693/how-can-i-make-a-textview-automatically-scroll-as-i-add-more-lines-of-text
-         * The first one doesn't even compile because ScrollView has no
-         * method setSelection().
-         */
-        //mTextView.setSelection(mTextView.getText().length());
-
-        /* These two sorta work, but make the screen flash so much
-         * you can't read it and make for a huge delay between when
-         * you show the dialog and when you can do anything else.
-         * XXX Maybe each of these scrollTo events takes a finite amount
-         * of time and the events aren't collapsed together?
-         * Maybe if we could batch them by timestamp somehow?
-        mTextView.scrollTo(0, Integer.MAX_VALUE);
-        mScrollView.scrollTo(0, Integer.MAX_VALUE);
-         */
-
-        /* Next attempt crashes with a NullPointerException on the first line:
-        final int scrollAmount = mTextView.getLayout().getLineTop(mTextView.getLineCount()) - mTextView.getHeight();
-        // if there is no need to scroll, scrollAmount will be <=0
-        if (scrollAmount > 0)
-            mTextView.scrollTo(0, scrollAmount);
-        else
-            mTextView.scrollTo(0, 0);
+         * mTextView.setSelection() doesn't even compile because ScrollView
+         * has no method setSelection().
+         * mTextView.scrollTo(0, Integer.MAX_VALUE) and
+         * mScrollView.scrollTo(0, Integer.MAX_VALUE) sorta work, but made
+         * the screen flash so much you couldn't read it when they
+         * happened on every line; batching is what fixed that.
+         * mTextView.getLayout().getLineTop(...) crashes with a
+         * NullPointerException.
          */
     }
 }
-
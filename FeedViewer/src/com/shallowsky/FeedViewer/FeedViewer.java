@@ -102,6 +102,7 @@ public class FeedViewer extends Activity implements OnGestureListener {
     FeedFetcher mFeedFetcher = null;
     Dialog mFeedFetcherDialog = null;
     TextView mFeedFetcherText = null;
+    FeedProgress mFeedProgress = null;
     // The server from which we'll fetch the feeds
     String mFeedServer = null;
 
@@ -1045,6 +1046,9 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
             File[] daydirs = basedir.listFiles();
             Arrays.sort(daydirs);
             for (int day = daydirs.length-1; day >= 0; --day) {
+                // Skip things like the .blobs image store.
+                if (daydirs[day].getName().startsWith("."))
+                    continue;
                 if (daydirs[day].isDirectory()) {
                     Boolean showedHeader = false;
                     // Loop over feeds for that day
@@ -1225,6 +1229,20 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
         saveStateInPreferences();
     }
 
+    /*
+     * The BlobStore for whichever of mBasePaths file is under, or null.
+     */
+    BlobStore blobStoreFor(File file) {
+        String path = file.getAbsolutePath();
+        for (int base = 0; base < mBasePaths.size(); ++base) {
+            File basedir = new File(mBasePaths.get(base));
+            if (path.startsWith(basedir.getAbsolutePath() + File.separator)
+                && basedir.isDirectory())
+                return BlobStore.forDir(basedir);
+        }
+        return null;
+    }
+
     /*
      * Recursively delete a directory.
      */
@@ -1303,6 +1321,11 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
                                           "deleting "
                                             + feeddir.getAbsolutePath());
 
+                                    // Let go of its images first,
+                                    // deleting any no other day is using.
+                                    BlobStore blobs = blobStoreFor(feeddir);
+                                    if (blobs != null)
+                                        blobs.release(feeddir);
                                     deleteDir(feeddir);
 
                                     // If this was the last feed and
@@ -1328,6 +1351,8 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
                                                 break;
                                             }
                                         if (! hasChildDirs) {
+                                            if (blobs != null)
+                                                blobs.release(parent);
                                             deleteDir(parent);
                                         }
                                     }
@@ -1676,7 +1701,7 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
 
         // Does the dialog already exist? Then show it again.
         if (mFeedFetcherDialog != null) {
-            mFeedFetcherText.append("\n\nRe-showing the old dialog\n");
+            mFeedProgress.log("\n\nRe-showing the old dialog\n");
 
             // Try to scroll to the bottom, though this doesn't always work,
             // particularly during the actual downloading phase:
@@ -1700,6 +1725,19 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
                 (TextView)mFeedFetcherDialog.findViewById(R.id.feedFetcherText);
             mFeedFetcherText.setMovementMethod(new ScrollingMovementMethod());
 
+            // FeedProgress owns the text from here on: anything appended
+            // to the TextView directly would vanish on its next redraw.
+            mFeedProgress = new FeedProgress(mFeedFetcherText,
+                (ScrollView)mFeedFetcherDialog.findViewById(R.id.fetcherTextScroller));
+
+            // Tap the text to switch between a line per file
+            // and just a summary.
+            mFeedFetcherText.setOnClickListener(new OnClickListener() {
+                    public void onClick(View v) {
+                        mFeedProgress.toggleCompact();
+                    }
+                });
+
             imgToggle =
                 (Button)mFeedFetcherDialog.findViewById(R.id.ffImgToggle);
             imgToggle.setOnClickListener(new OnClickListener() {
@@ -1716,11 +1754,11 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
                     }
                 });
 
-            mFeedFetcherText.setText("Making a brand new dialog\n\n");
+            mFeedProgress.log("Making a brand new dialog\n\n");
         }
 
         if (mFeedFetcher == null) {
-            mFeedFetcherText.append("Creating a new Feed Fetcher\n");
+            mFeedProgress.log("Creating a new Feed Fetcher\n");
             if (mFeedServer == null) {
                 Log.d("FeedViewer", "Can't fetch feeds: mFeedServer is null!");
                 return;
@@ -1729,20 +1767,19 @@ I/ActivityManager(  818): Process com.shallowsky.FeedViewer (pid 32069) (adj 13)
             Log.d("FeedFetcher", "Creating a FeedFetcher with mFeedDir = "
                   + mFeedDir + " and server " + mFeedServer);
             mFeedFetcher = new FeedFetcher(this, mFeedServer, mFeedDir,
-                                           new FeedProgress(mFeedFetcherText,
-                                                            (ScrollView)mFeedFetcherDialog.findViewById(R.id.fetcherTextScroller)));
+                                           mFeedProgress);
             if (! mFeedFetcher.fetchFeeds())
-                mFeedFetcherText.append("\n\nCouldn't run fetchFeeds\n");
+                mFeedProgress.log("\n\nCouldn't run fetchFeeds\n");
         }
 
         // Make sure the Toggle Images button matches the state of
         // mFeedFetcher. If we've run previously and the user has blocked
         // images, we want to keep that setting on.
-        if (mFeedFetcher.mFetchImages) {
-            mFeedFetcherText.append("Will be fetching images");
+        if (mFeedFetcher.fetchingImages()) {
+            mFeedProgress.log("Will be fetching images");
             imgToggle.setText("No images");
         } else {
-            mFeedFetcherText.append("Will be SKIPPING images");
+            mFeedProgress.log("Will be SKIPPING images");
             imgToggle.setText("Images");
         }
 
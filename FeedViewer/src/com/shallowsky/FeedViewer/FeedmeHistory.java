@@ -0,0 +1,72 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// How long feedme took on the last few runs, kept in a little file
+// alongside the feeds, so the next wait can be planned around it.
+public class FeedmeHistory {
+    static final int MAX_RUNS = 7;
+
+    File mFile;
+    List<Long> mDurations = new ArrayList<Long>();
+
+    public FeedmeHistory(File file) {
+        mFile = file;
+        load();
+    }
+
+    // One duration in milliseconds per line, oldest first.
+    private void load() {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(mFile));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    try {
+                        mDurations.add(Long.parseLong(line.trim()));
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            // No history yet.
+        }
+    }
+
+    public void add(long duration) {
+        mDurations.add(duration);
+        while (mDurations.size() > MAX_RUNS)
+            mDurations.remove(0);
+        try {
+            FileWriter fw = new FileWriter(mFile);
+            try {
+                for (Long d : mDurations)
+                    fw.write(d + "\n");
+            } finally {
+                fw.close();
+            }
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher",
+                        "Couldn't save feedme history to " + mFile);
+        }
+    }
+
+    // The median of recent runs, which a single slow day won't throw
+    // off much; -1 if we have no idea.
+    public long estimate() {
+        if (mDurations.isEmpty())
+            return -1;
+        List<Long> sorted = new ArrayList<Long>(mDurations);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
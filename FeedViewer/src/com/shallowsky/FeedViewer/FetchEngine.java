@@ -0,0 +1,2139 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * FetchEngine: fetch a directory of feeds (already converted from RSS)
+ * from a server, in plain Java, with nothing Android about it.
+ * FeedFetcher runs it as an AsyncTask on the phone; it can just as
+ * well run in a test harness or a command-line sync tool on a laptop.
+ * What it needs from wherever it's running comes in through the little
+ * interfaces below: somewhere to report progress, a clock, whether
+ * the network is up, and where to put the feeds.
+ *
+ * ServerURL: the base URL of the server.
+ *
+ * First, we initiate the feed by fetching the special url
+ *   $ServerURL/feedme/urlrss.cgi?xtraurls=STR
+ * where STR is a concatenation of extra URLS wanted,
+ * URL encoded and connected by the string '%0a'.
+ * For instance,
+ *   /feedme/urlrss.cgi?xtraurls=http%3A%2F%2Fblog.arduino.cc%2F2013%2F07%2F10%2Fsend-in-the-clones%2F%0ahttp%3A%2F%2Fread.bi%2F10Lbfh9%0ahttp%3A%2F%2Fwww.popsci.com%2Ftechnology%2Farticle%2F2013-07%2Fdrones-civil-war%0ahttp%3A%2F%2Fwww.thisamericanlife.org%2Fblog%2F2015%2F05%2Fcanvassers-study-in-episode-555-has-been-retracted
+ * The saved URLs come from the Storage, normally the (line separated)
+ * file $localdir/saved-urls.
+ *
+ * Once the initial urlrss.cgi URL has been requested,
+ * we wait for it to finish.
+ * baseurl = serverurl + "/feeds/" + strftime("%m-%d-%a")
+ * We wait for baseurl/MANIFEST to appear,
+ * meanwhile showing progress by fetching baseurl and parsing it
+ * to show which directories have appeared. Those polls are conditional
+ * GETs, so a listing that hasn't changed comes back as an empty 304.
+ *
+ * Finally, when MANIFEST has appeared and stopped changing,
+ * we download all files specified there, several at a time.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class FetchEngine {
+
+    // Where progress goes: on the phone, the fetcher dialog.
+    // Called from the fetching thread, and fileDone() and setStatus()
+    // from download workers too.
+    public interface Progress {
+        // A line worth showing.
+        void message(String s);
+        // One worth making a fuss about, like "Fetched feeds".
+        void important(String s);
+        // A file finished downloading: done of total so far.
+        void fileDone(String relpath, long bytes, int done, int total);
+        // Anything else worth showing, like how many downloads
+        // are running at once.
+        void setStatus(String status);
+    }
+
+    // Time, for waiting on feedme and for deciding what day it is.
+    // A test can use a fake one to avoid really waiting.
+    public interface Clock {
+        long now();
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    public interface Connectivity {
+        Boolean isConnected();
+        // Charged by the byte, like a phone's data plan?
+        Boolean isMetered();
+    }
+
+    // Where the feeds go, and the URLs saved for feedme to fetch.
+    public interface Storage {
+        // Day directories go in here, e.g. localDir()/10-18-Sun/.
+        File localDir();
+        // URLs saved while reading, to pass to urlrss.cgi.
+        // Empty if there aren't any.
+        List<String> savedURLs() throws IOException;
+        // The server has these, so forget them -- but not any
+        // that were saved since we read the list.
+        void forgetSavedURLs(Collection<String> sent);
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+            public long now() {
+                return System.currentTimeMillis();
+            }
+            public void sleep(long millis) throws InterruptedException {
+                Thread.sleep(millis);
+            }
+        };
+
+    // For when we've no way to tell: assume the network's fine.
+    public static final Connectivity ALWAYS_CONNECTED = new Connectivity() {
+            public Boolean isConnected() {
+                return true;
+            }
+            public Boolean isMetered() {
+                return false;
+            }
+        };
+
+    // Storage in a local directory, with saved URLs one per line
+    // in localdir/saved-urls.
+    public static class DirStorage implements Storage {
+        File mDir;
+
+        public DirStorage(File dir) {
+            mDir = dir;
+        }
+
+        public File localDir() {
+            return mDir;
+        }
+
+        public List<String> savedURLs() throws IOException {
+            List<String> urls = new ArrayList<String>();
+            File file = new File(mDir, "saved-urls");
+            if (!file.exists())
+                return urls;
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = br.readLine()) != null)
+                    urls.add(line);
+            } finally {
+                br.close();
+            }
+            return urls;
+        }
+
+        public synchronized void forgetSavedURLs(Collection<String> sent) {
+            sent = new HashSet<String>(sent);
+            File file = new File(mDir, "saved-urls");
+            List<String> keep = new ArrayList<String>();
+            try {
+                for (String url : savedURLs()) {
+                    url = url.trim();
+                    if (url.length() > 0 && !sent.contains(url))
+                        keep.add(url);
+                }
+            } catch (IOException e) {
+                // Then there's nothing we can keep.
+            }
+            if (keep.isEmpty()) {
+                file.delete();
+                return;
+            }
+            // Write the rest to a new file and move it into place,
+            // so there's never a half-written saved-urls.
+            File tmp = new File(mDir, "saved-urls.new");
+            try {
+                PrintWriter pw = new PrintWriter(new FileWriter(tmp));
+                try {
+                    for (String url : keep)
+                        pw.println(url);
+                } finally {
+                    pw.close();
+                }
+                if (!tmp.renameTo(file))
+                    throw new IOException("Couldn't rename " + tmp);
+            } catch (IOException e) {
+                EngineLog.d("FeedFetcher",
+                            "Couldn't rewrite saved-urls: " + e);
+                tmp.delete();
+            }
+        }
+    }
+
+    String mServerUrl;
+    String mLocalDir;
+    Storage mStorage;
+    Progress mProgress;
+    Clock mClock = SYSTEM_CLOCK;
+    Connectivity mConnectivity = ALWAYS_CONNECTED;
+    Boolean mFetchImages = true;
+
+    // Set by stop(), from whatever thread;
+    // the fetch and its download workers check it.
+    volatile Boolean mStopped = false;
+
+    // How many files to download at once. With adaptive concurrency
+    // that's just where we start, and AimdController moves it
+    // between 1 and mMaxDownloaders depending on how it's going.
+    int mNumDownloaders = 4;
+    int mMaxDownloaders = 8;
+    Boolean mAdaptive = true;
+
+    // Pipelined mode: start fetching each feed as soon as feedme
+    // has finished writing it, rather than waiting for MANIFEST.
+    Boolean mPipelined = false;
+
+    // Bundle mode: ask for the whole day as one archive first.
+    Boolean mUseBundle = false;
+
+    // How we pace our checks while waiting for feedme.
+    // null means back off exponentially, planning around how long
+    // feedme took on recent runs.
+    WaitStrategy mWaitStrategy = null;
+    static final long MIN_POLL_DELAY = 2000;     // milliseconds
+    static final long MAX_POLL_DELAY = 30000;
+    static final String FEEDME_HISTORY = ".feedme-history";
+
+    // Ask the server to hold our MANIFEST request until it exists.
+    Boolean mLongPoll = false;
+    static final int LONG_POLL_SECS = 60;
+
+    // The longest urlrss.cgi URL we'll GET, if the server won't take
+    // saved URLs in a POST. Apache's limit on the request line is 8190.
+    static final int MAX_GET_URL = 8000;
+
+    // What urlrss.cgi says when it's read saved URLs from a POST,
+    // on a line of its own: "Received 3 URLs".
+    static final Pattern POST_RECEIVED =
+        Pattern.compile("(?m)^Received (\\d+) URLs?$");
+
+    // Makes sure every response gets finished with, so connections
+    // to the server stay alive across the whole fetch, and counts
+    // the requests.
+    HttpSession mSession = null;
+
+    // Images are kept once each in here, however many days use them.
+    BlobStore mBlobs = null;
+
+    // Does the writing to disk for the download workers.
+    DownloadWriter mWriter = new DownloadWriter();
+
+    // Limits for metered connections: see BandwidthBudget.
+    // 0 or -1 mean no limit, which is the default.
+    long mRateLimit = 0;          // bytes per second
+    long mByteBudget = -1;        // bytes per fetch
+    long mMaxImageSize = -1;      // bytes
+    Boolean mLimitOnlyWhenMetered = true;
+    // The limits in force for this fetch.
+    BandwidthBudget mBudget = new BandwidthBudget(0, -1, -1, mClock);
+    // Images left for later because of them.
+    PendingImages mPending = null;
+
+    // Images we've left for an unmetered network, by path relative
+    // to mLocalDir, e.g. "10-17-Sat/slashdot/img/photo.jpg".
+    // Workers add to it too.
+    Set<String> mPostponed =
+        Collections.synchronizedSet(new HashSet<String>());
+
+    // What this fetch has done so far, in case we get killed:
+    // see FetchJournal.
+    FetchJournal mJournal = null;
+    // If the journal says feedme was started longer ago than this
+    // and it still hasn't made the day's directory, start it again.
+    static final long FEEDME_RESTART_AFTER = 30 * 60 * 1000;
+
+    // Catch-up mode: also fetch the days we missed since the last
+    // time, if the server still has them.
+    Boolean mCatchUp = false;
+    // Which day that was. Not just the newest day directory we have,
+    // since days get deleted once they're read, and we don't want
+    // them back.
+    static final String LAST_DAY_FILE = ".last-fetched-day";
+    // But not more than this many: after a long trip, the old
+    // news can stay old.
+    static final int MAX_CATCHUP_DAYS = 7;
+
+    // What fetch() says when all went well.
+    static final String FETCH_FINISHED = "Finished fetching feeds";
+
+    public FetchEngine(String serverurl, Storage storage, Progress progress) {
+        mServerUrl = serverurl;
+        mStorage = storage;
+        mLocalDir = storage.localDir().getPath();
+        mProgress = progress;
+        EngineLog.d("FeedFetcher", "Initializing, mLocalDir = " + mLocalDir);
+    }
+
+    public void setServerURL(String serverurl) {
+        mServerUrl = serverurl;
+    }
+
+    public void setClock(Clock clock) {
+        mClock = clock;
+    }
+
+    public void setConnectivity(Connectivity connectivity) {
+        mConnectivity = connectivity;
+    }
+
+    // Stop fetching as soon as we can. Partial files are left
+    // to be picked up next time.
+    public void stop() {
+        mStopped = true;
+    }
+
+    public Boolean isCancelled() {
+        return mStopped;
+    }
+
+    public Boolean fetchingImages() {
+        return mFetchImages;
+    }
+
+    // How many files to download in parallel. Somewhere around 4-8
+    // keeps a high-latency link busy without hammering the server.
+    public void setNumDownloaders(int n) {
+        mNumDownloaders = Math.max(1, n);
+        mMaxDownloaders = Math.max(mMaxDownloaders, mNumDownloaders);
+    }
+
+    // Let the number of downloaders grow and shrink with the network,
+    // up to max; or if adaptive is false, stick to setNumDownloaders.
+    public void setAdaptiveConcurrency(Boolean adaptive, int max) {
+        mAdaptive = adaptive;
+        mMaxDownloaders = Math.max(1, max);
+        mNumDownloaders = Math.min(mNumDownloaders, mMaxDownloaders);
+    }
+
+    // In pipelined mode, each feed is fetched from its directory
+    // listing as soon as feedme moves on to the next one, and the
+    // final MANIFEST only picks up whatever was missed.
+    public void setPipelined(Boolean pipelined) {
+        mPipelined = pipelined;
+    }
+
+    // In bundle mode, once feedme is done we ask the server for
+    // the day's whole directory as one .tar.gz or .zip, and only
+    // fall back to fetching files one by one if it isn't there.
+    public void setUseBundle(Boolean useBundle) {
+        mUseBundle = useBundle;
+    }
+
+    // Catch-up mode: along with today, fetch any days on the server
+    // since the last fetch that finished, newest first, on the same
+    // workers and within the same budget. The first fetch in this
+    // mode only gets today, since it has no last fetch to go by.
+    public void setCatchUp(Boolean catchUp) {
+        mCatchUp = catchUp;
+    }
+
+    // How downloads are written to storage: see DownloadWriter.
+    // SD cards tend to like bigger buffers; syncing each file costs
+    // some speed but means a power cut can't leave a bad file behind.
+    public void setWriteBufferSize(int bytes) {
+        mWriter.setBufferSize(bytes);
+    }
+
+    public void setSyncPolicy(int policy) {
+        mWriter.setSyncPolicy(policy);
+    }
+
+    public void setPreallocate(Boolean preallocate) {
+        mWriter.setPreallocate(preallocate);
+    }
+
+    // Cap the download rate, in bytes per second; 0 for no cap.
+    public void setRateLimit(long bytesPerSec) {
+        mRateLimit = bytesPerSec;
+    }
+
+    // How much one fetch may download, in bytes; -1 for no limit.
+    // Text always gets fetched, but once it and the images so far
+    // have used up the budget, the rest of the images are left
+    // for the next fetch on an unmetered network.
+    public void setByteBudget(long bytes) {
+        mByteBudget = bytes;
+    }
+
+    // Leave images bigger than this for an unmetered network;
+    // -1 to fetch them whatever their size.
+    public void setMaxImageSize(long bytes) {
+        mMaxImageSize = bytes;
+    }
+
+    // Normally the limits above only apply on a metered connection
+    // (a phone's data plan); false applies them everywhere.
+    public void setLimitOnlyWhenMetered(Boolean onlyMetered) {
+        mLimitOnlyWhenMetered = onlyMetered;
+    }
+
+    public void setWaitStrategy(WaitStrategy waiter) {
+        mWaitStrategy = waiter;
+    }
+
+    // In long-poll mode, while feedme runs we ask for MANIFEST and
+    // let the server hold the request until it appears, so we hear
+    // about it right away. Servers that don't support that answer
+    // immediately, and we go back to polling.
+    public void setLongPoll(Boolean longPoll) {
+        mLongPoll = longPoll;
+    }
+
+    // Control whether images are fetched
+    public void setFetchImages(Boolean fetchImages) {
+        mFetchImages = fetchImages;
+    }
+
+    // Fetch today's feeds. This runs until it's done, so call it
+    // from a background thread. Returns a message saying how it went.
+    public String fetch() {
+        EngineLog.d("FeedFetcher", "Trying to fetch feeds.");
+
+        // Before attempting to fetch anything, makes sure the net's up:
+        if (!mConnectivity.isConnected()) {
+            logProgress("No network connection available.");
+            return "No network connection available.";
+        }
+
+        mSession = new HttpSession();
+        mBlobs = BlobStore.forDir(new File(mLocalDir));
+        if (mConnectivity.isMetered() || !mLimitOnlyWhenMetered)
+            mBudget = new BandwidthBudget(mRateLimit, mByteBudget,
+                                          mMaxImageSize, mClock);
+        else
+            mBudget = new BandwidthBudget(0, -1, -1, mClock);
+        if (mBudget.limited())
+            logProgress("Metered connection: limiting downloads");
+        mPending = new PendingImages(new File(mLocalDir));
+        mPostponed.clear();
+
+        try {
+            return fetchToday();
+        } finally {
+            logProgress("HTTP: " + mSession.stats());
+            logProgress(mWriter.stats());
+            if (mBudget.limited())
+                logProgress(mBudget.summary());
+            mSession.close();
+        }
+    }
+
+    // The saved URLs for feedme, without blank lines or repeats,
+    // since saving the same article twice is easy to do.
+    private List<String> savedURLs() {
+        Set<String> saved = new LinkedHashSet<String>();
+        try {
+            for (String url : mStorage.savedURLs()) {
+                url = url.trim();
+                if (url.length() > 0)
+                    saved.add(url);
+            }
+        } catch (IOException e) {
+            logProgress("Couldn't read any saved urls: " + e.getMessage());
+        }
+        return new ArrayList<String>(saved);
+    }
+
+    // Start feedme by calling urlrss.cgi, and give it the saved URLs.
+    // Returns what urlrss.cgi said.
+    //
+    // The URLs go in the body of a POST, which can be as long as it
+    // needs to be, rather than in a GET URL, which can't: Apache
+    // won't take a request line over 8K, which is only a few dozen
+    // URLs once they're encoded. (It's a form body with a
+    // Content-Length rather than anything cleverer, since that's
+    // what a CGI script behind Apache can read.)
+    // An old server that won't take a POST gets a GET, with as many
+    // URLs as will fit; the rest wait for next time.
+    // Some old servers answer a POST but ignore what's in it, so a
+    // 200 isn't enough: a urlrss.cgi that takes POSTs says how many
+    // URLs it got (see POST_RECEIVED), and if it doesn't say so,
+    // or the number's wrong, we try a GET too.
+    //
+    // Only the URLs the server took are forgotten, and only once it's
+    // said it has them, so none get lost if the request fails.
+    private String startFeedme() throws IOException {
+        String urlrssURL = mServerUrl + "/feedme/urlrss.cgi";
+        List<String> saved = savedURLs();
+        if (saved.isEmpty()) {
+            // We must pass xtraurls= even if we have no extras,
+            // because that's what urlrss.cgi uses to decide if it's
+            // being called as a CGI script.
+            logProgress(urlrssURL);
+            return downloadUrl(urlrssURL + "?xtraurls=none");
+        }
+        for (String url : saved)
+            logProgress("URL: " + url);
+
+        // One pass to encode, so the body is built in linear time.
+        StringBuilder sb = new StringBuilder("xtraurls=");
+        for (int i = 0; i < saved.size(); ++i) {
+            if (i > 0)
+                sb.append("%0A");
+            sb.append(URLEncoder.encode(saved.get(i), "UTF-8"));
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        logProgress("POST " + urlrssURL + " (" + saved.size() + " URLs)");
+        HttpSession.Response resp =
+            mSession.request("POST", urlrssURL, headers,
+                             sb.toString().getBytes("US-ASCII"));
+        try {
+            int status = resp.status();
+            if (status != 405 && status != 501 && status != 411) {
+                resp.checkStatus();
+                String output = readIt(resp.body());
+                if (postReceived(output) == saved.size()) {
+                    mStorage.forgetSavedURLs(saved);
+                    return output;
+                }
+                logProgress("Server didn't say it got the URLs:"
+                            + " sending them in the URL");
+            } else
+                logProgress("Server won't take a POST:"
+                            + " sending URLs in the URL");
+        } finally {
+            resp.close();
+        }
+
+        // The old way. Just the ones that fit, but always at least one.
+        StringBuilder url = new StringBuilder(urlrssURL)
+            .append("?xtraurls=");
+        List<String> sent = new ArrayList<String>();
+        for (String saveurl : saved) {
+            String enc = URLEncoder.encode(saveurl, "UTF-8");
+            if (!sent.isEmpty()
+                && url.length() + 3 + enc.length() > MAX_GET_URL)
+                break;
+            if (!sent.isEmpty())
+                url.append("%0A");
+            url.append(enc);
+            sent.add(saveurl);
+        }
+        if (sent.size() < saved.size())
+            logProgress("Sending " + sent.size() + " of " + saved.size()
+                        + " saved URLs; the rest next time");
+        String output = downloadUrl(url.toString());
+        mStorage.forgetSavedURLs(sent);
+        return output;
+    }
+
+    // How many URLs urlrss.cgi says it got in a POST, or -1 if it
+    // doesn't say, e.g. because it's too old to read POSTs.
+    static int postReceived(String output) {
+        Matcher m = POST_RECEIVED.matcher(output);
+        if (!m.find())
+            return -1;
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Fetch MANIFEST, handing each entry to listener as it's read,
+    // and check to make sure it's complete.
+    // Throws IOException if the manifest isn't there.
+    // If it's there but incomplete, loop up to a set number of times.
+    // The listener sees the entries again each time around, so it
+    // should ignore ones it already has.
+    void fetchManifest(String manifestURL, ManifestReader.Listener listener)
+        throws IOException {
+        int MAX_RETRIES = 10;
+        for (int i=0; i<MAX_RETRIES; ++i) {
+            // If it hasn't changed since last time, this is a 304 with
+            // no body: it's still the same partial manifest as before.
+            HttpSession.Response resp = getConditional(manifestURL);
+            try {
+                if (resp.status() == 304) {
+                    EngineLog.d("FeedFetcher",
+                                "MANIFEST unchanged since last check");
+                } else {
+                    resp.checkStatus();
+                    ManifestReader reader = new ManifestReader(listener);
+                    reader.read(resp.body());
+
+                    if (reader.numEntries() == 0 && !reader.complete()) {
+                        EngineLog.d("FeedFetcher",
+                                    "MANIFEST was zero length");
+                        throw new IOException("MANIFEST was empty");
+                    }
+                    if (reader.complete()) {
+                        EngineLog.d("FeedFetcher", "End of MANIFEST was fine");
+                        // It won't change again, and if we're asked
+                        // for it again it'll be to read the entries.
+                        mPageCache.remove(manifestURL);
+                        return;
+                    }
+
+                    // Only remember validators once we've read the
+                    // whole body, so a 304 means we've seen all of it.
+                    rememberValidators(manifestURL, resp);
+                    EngineLog.d("FeedFetcher",
+                                "Partial MANIFEST of " + reader.numEntries()
+                                + " entries");
+                }
+            } finally {
+                resp.close();
+            }
+
+            // We got a partial manifest. Sleep then loop around again.
+            // In theory it shouldn't take long to write the manifest;
+            // all feeds have been read, it's just writing a list of filenames.
+            sleep(2000);
+        }
+
+        // If we get here and haven't returned a manifest after numerous tries,
+        // there's a problem. Better throw an error.
+        throw new IOException("MANIFEST not complete after " + MAX_RETRIES
+                              + " tries");
+    }
+
+    // Fetch today's directory.
+    private String fetchToday() {
+        // Figure out our feed directory based on the date:
+        Date curDate = new Date(mClock.now());
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd-EEE");
+        String todayStr = format.format(curDate);
+        String feeddirbase = mServerUrl + "/feeds/";
+        String feeddir = feeddirbase + todayStr + "/";
+        String manifestURL = feeddir + "MANIFEST";
+
+        String datedir = mLocalDir + "/" + todayStr + "/";
+        File dd = new File(datedir);
+        dd.mkdir();
+
+        mJournal = new FetchJournal(dd, manifestURL);
+        if (mJournal.resumed())
+            logProgress("Picking up an unfinished fetch: "
+                        + mJournal.numDone() + " files done, "
+                        + mJournal.numInFlight() + " partway"
+                        + (mJournal.hadManifest() ? ""
+                           : ", still waiting for feedme"));
+
+        // The workers are started now rather than after MANIFEST
+        // appears, so that in pipelined mode they can get going
+        // on feeds while feedme is still working on the rest.
+        DownloadQueue queue = new DownloadQueue(mJournal);
+        // The days we missed are done already, so their files can
+        // download while we wait for feedme to do today.
+        List<CatchUpDay> catchup = new ArrayList<CatchUpDay>();
+        if (mCatchUp)
+            catchup = startCatchUp(missedDays(todayStr), queue);
+        try {
+            String result = fetchDay(feeddir, manifestURL,
+                                     datedir, queue);
+            String err = finishCatchUp(catchup);
+            if (err != null)
+                return err;
+            // Only once everything's done: if we're stopped or killed
+            // before then, next time catches up from the same place.
+            if (FETCH_FINISHED.equals(result))
+                writeLastDay(todayStr);
+            return result;
+        } finally {
+            // If we're bailing out early, this interrupts any
+            // workers still running and drops the queued jobs.
+            queue.shutdown();
+            // If we finished, this does nothing, since finish()
+            // already deleted it; otherwise it's left for next time.
+            mJournal.close();
+            for (CatchUpDay day : catchup)
+                day.mJournal.close();
+        }
+    }
+
+    // A day we missed, being fetched alongside today.
+    private class CatchUpDay {
+        String mName;
+        String mDateDir;
+        FetchJournal mJournal;
+        ManifestDelta mDelta;
+        ManifestQueuer mQueuer;
+        DownloadQueue mQueue;
+    }
+
+    // Catch-up mode: the days on the server since the last fetch
+    // that finished, newest first, not counting today.
+    // Day directories are named like 10-17-Sat, with no year,
+    // so a day later in the year than today must be from last year.
+    private List<String> missedDays(String todayStr) {
+        List<String> missed = new ArrayList<String>();
+        long today = dayTime(todayStr, mClock.now());
+        String last = readLastDay();
+        long newest = (last == null) ? -1 : dayTime(last, today);
+        if (newest < 0) {
+            logProgress("No record of the last fetch: not catching up"
+                        + " on earlier days this time");
+            return missed;
+        }
+
+        // Newest first.
+        Map<Long, String> days = new TreeMap<Long, String>(
+            Collections.reverseOrder());
+        String feedsURL = mServerUrl + "/feeds/";
+        try {
+            HttpSession.Response resp = mSession.get(feedsURL);
+            try {
+                resp.checkStatus();
+                for (String href : DirListing.hrefs(resp.body())) {
+                    if (!href.endsWith("/"))
+                        continue;
+                    String name = href.substring(0, href.length() - 1);
+                    long t = dayTime(name, today);
+                    if (t > newest && t < today)
+                        days.put(t, name);
+                }
+            } finally {
+                resp.close();
+            }
+        } catch (IOException e) {
+            logProgress("Couldn't list " + feedsURL + ": " + e.getMessage());
+        }
+
+        missed.addAll(days.values());
+        if (missed.size() > MAX_CATCHUP_DAYS) {
+            logProgress("Missed " + missed.size() + " days; catching up on "
+                        + MAX_CATCHUP_DAYS);
+            missed = missed.subList(0, MAX_CATCHUP_DAYS);
+        }
+        return missed;
+    }
+
+    // The last day a fetch finished, or null if we don't know.
+    private String readLastDay() {
+        File file = new File(mLocalDir, LAST_DAY_FILE);
+        if (!file.exists())
+            return null;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file));
+            try {
+                String line = br.readLine();
+                return (line == null) ? null : line.trim();
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't read " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void writeLastDay(String day) {
+        File file = new File(mLocalDir, LAST_DAY_FILE);
+        File partial = new File(file.getPath() + PARTIAL_SUFFIX);
+        try {
+            FileWriter fw = new FileWriter(partial);
+            try {
+                fw.write(day + "\n");
+            } finally {
+                fw.close();
+            }
+            if (!partial.renameTo(file))
+                throw new IOException("Couldn't rename " + partial);
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't write " + file + ": " + e);
+        }
+    }
+
+    // When a day directory like 10-17-Sat was, as the latest such
+    // date no later than now; or -1 if it isn't a day directory.
+    static long dayTime(String name, long now) {
+        if (name.length() != 9 || name.charAt(2) != '-'
+            || name.charAt(5) != '-')
+            return -1;
+        int month, day;
+        try {
+            month = Integer.parseInt(name.substring(0, 2));
+            day = Integer.parseInt(name.substring(3, 5));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31)
+            return -1;
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        int year = cal.get(Calendar.YEAR);
+        cal.clear();
+        cal.set(year, month - 1, day);
+        if (cal.getTimeInMillis() > now)
+            cal.set(year - 1, month - 1, day);
+        return cal.getTimeInMillis();
+    }
+
+    // Read the MANIFEST of each day we missed, queueing its files
+    // behind today's on today's workers: the newer the day,
+    // the sooner its files come.
+    // Nothing goes on disk for a day until we have its whole
+    // MANIFEST, so a day the server never finished (or a fetch
+    // killed partway through reading one) leaves nothing behind.
+    private List<CatchUpDay> startCatchUp(List<String> missed,
+                                          DownloadQueue today) {
+        List<CatchUpDay> days = new ArrayList<CatchUpDay>();
+        for (String name : missed) {
+            if (isCancelled())
+                break;
+            CatchUpDay day = new CatchUpDay();
+            day.mName = name;
+            day.mDateDir = mLocalDir + "/" + name + "/";
+            String feeddir = mServerUrl + "/feeds/" + name + "/";
+            String manifestURL = feeddir + "MANIFEST";
+            File dd = new File(day.mDateDir);
+            // The journal comes later, so hold the entries till then.
+            day.mQueue = new DownloadQueue(today, days.size() + 1, null);
+            day.mQueue.mPrefix = name + "/";
+            day.mDelta = new ManifestDelta(dd);
+            day.mQueuer = new ManifestQueuer(feeddir, day.mDateDir,
+                                             day.mQueue, day.mDelta, true);
+            try {
+                fetchManifest(manifestURL, day.mQueuer);
+            } catch (IOException e) {
+                // feedme must not have finished that day.
+                logProgress("No MANIFEST for " + name + ": skipping it");
+                continue;
+            }
+            dd.mkdir();
+            // If we were killed partway through this day last time,
+            // this picks up where that left off.
+            day.mJournal = new FetchJournal(dd, manifestURL);
+            day.mJournal.manifestComplete();
+            day.mQueue.mJournal = day.mJournal;
+            logProgress("Catching up on " + name + ": "
+                        + day.mDelta.summary());
+            for (String relpath : day.mDelta.removed())
+                discard(day.mDateDir, relpath);
+            day.mQueuer.release();
+            days.add(day);
+        }
+        return days;
+    }
+
+    // Wait for the rest of the catch-up days' files, and save what
+    // we got of each, as fetchDay does for today.
+    // Returns null, or a message saying why we gave up.
+    private String finishCatchUp(List<CatchUpDay> days) {
+        for (CatchUpDay day : days) {
+            String err = day.mQueue.collect(true);
+            if (err != null)
+                return err;
+            Set<String> skipped = new HashSet<String>(day.mQueue.failed());
+            skipped.addAll(day.mQueuer.mSkipped);
+            skipped.addAll(postponedIn(day.mDateDir));
+            try {
+                day.mDelta.save(skipped);
+            } catch (IOException e) {
+                logProgress("Couldn't save manifest for " + day.mName
+                            + ": " + e.getMessage());
+            }
+            day.mJournal.finish();
+            logProgress("Caught up on " + day.mName);
+        }
+        return null;
+    }
+
+    // Run feedme if need be, wait for it, and download the results.
+    private String fetchDay(String feeddir, String manifestURL,
+                            String datedir, DownloadQueue queue) {
+        String output;
+        Boolean haveManifest = false;
+
+        // MANIFEST entries go to the download queue as they're read,
+        // unless we're going to try for a bundle first.
+        // In pipelined mode the workers may soon be writing some of
+        // the same files from the feed directories, so don't try
+        // a bundle then: the queue is still empty at this point,
+        // so checking that wouldn't catch it.
+        // Nor when there's a budget, since a bundle is all or nothing.
+        Boolean tryBundle = mUseBundle && mFetchImages && !mPipelined
+            && !mBudget.limited();
+        // Compared against what we got last time we fetched this day,
+        // so only what's new or changed gets downloaded.
+        ManifestDelta delta = new ManifestDelta(new File(datedir));
+        ManifestQueuer queuer =
+            new ManifestQueuer(feeddir, datedir, queue, delta, tryBundle);
+
+        // Has feedme already run? Check whether the manifest
+        // is already there.
+        try {
+            fetchManifest(manifestURL, queuer);
+            haveManifest = true;
+            logProgress("Feedme already ran.\n");
+        } catch (IOException e) {
+            logProgress("No MANIFEST there yet\n");
+        }
+
+        if (!haveManifest) {
+            // feedme hasn't finished running, but has it started?
+            // If it has, the directory should be there.
+            try {
+                output = downloadUrl(feeddir);
+            } catch (IOException e) {
+                // Directory isn't there yet, so we need to run feedme.
+                output = null;
+            }
+
+            // First, call urlrss to initiate feedme:
+            // XXX On the Galaxy S5 under Marshmallow, this
+            // almost always fails the first time with an IOException.
+            // It works the second time.
+            // It always worked the first time on the Galaxy S4, KitKat.
+            // It gets the saved URLs too: see startFeedme().
+            // The second time, we don't fetch this because we see
+            // that feedme already ran or is already running.
+            // But we should also check for LOG in case it's
+            // in themiddle of running but hasn't finished.
+            // When we started feedme, if we did, to see how long it takes.
+            long feedmeStarted = -1;
+            Boolean startFeedme = (output == null);
+            // But if we were killed after starting it last time,
+            // it's running already, so don't start it twice.
+            if (startFeedme && mJournal.triggered() > 0
+                && mClock.now() - mJournal.triggered()
+                   < FEEDME_RESTART_AFTER) {
+                logProgress("feedme was already started;"
+                            + " waiting for it");
+                feedmeStarted = mJournal.triggered();
+                startFeedme = false;
+            }
+            if (startFeedme) {
+                try {
+                    feedmeStarted = mClock.now();
+                    output = startFeedme();
+                    mJournal.feedmeTriggered(feedmeStarted);
+                    logProgress("\nStarting feedme ...\n");
+                    logProgress(output);
+                } catch (IOException e) {
+                    // Ugly, but the only way to get stack trace as string:
+                    StringWriter sw = new StringWriter();
+                    PrintWriter pw = new PrintWriter(sw);
+                    e.printStackTrace(pw);
+                    return "Couldn't initiate feedme: IOException on "
+                        + mServerUrl + "/feedme/urlrss.cgi"
+                        + "\n Exception is" + e.getMessage()
+                        + "\n and stack trace is:\n" + sw.toString();
+                }
+            }
+
+            ////////////////////////////////////////////////////////
+            // Feedme has been initiated.
+            // Now, we wait for MANIFEST to appear,
+            // periodically checking what's in the directory.
+            // How often we check is up to the WaitStrategy.
+            FeedmeHistory history = new FeedmeHistory(
+                new File(mLocalDir, FEEDME_HISTORY));
+            WaitStrategy waiter = mWaitStrategy;
+            if (waiter == null)
+                waiter = new BackoffWaitStrategy(MIN_POLL_DELAY,
+                                                 MAX_POLL_DELAY,
+                                                 history.estimate());
+            waiter.start();
+            long waitStarted = (feedmeStarted > 0) ? feedmeStarted
+                                   : mClock.now();
+            Boolean progress = false;
+            Boolean longPoll = mLongPoll;
+            Boolean feedmeRan = false;
+            // What's in the day directory, as of the last look.
+            DirListing listing = new DirListing();
+
+            // In pipelined mode, feed directories that have appeared
+            // but that feedme may still be writing.
+            List<String> unfinishedFeeds = new ArrayList<String>();
+
+            while (true) {
+                if (longPoll) {
+                    // Let the server hold the request until MANIFEST
+                    // shows up, rather than sleeping and asking again.
+                    long asked = mClock.now();
+                    int status = longPollManifest(manifestURL);
+                    if (status == 200) {
+                        feedmeRan = true;
+                    } else if (mClock.now() - asked
+                               < LONG_POLL_SECS * 1000 / 2) {
+                        // It answered right away, so it doesn't
+                        // do long polls. Go back to sleeping.
+                        logProgress("Server doesn't hold requests:"
+                                    + " polling instead");
+                        longPoll = false;
+                    }
+                }
+                if (!longPoll && !feedmeRan)
+                    sleep(waiter.nextDelay(mClock.now()
+                                           - waitStarted, progress));
+
+                // We have to check for cancellation ourselves.
+                // (AsyncTask's own isCancelled() never seemed to work:
+                // even after calling cancel it ran forever.)
+                if (isCancelled()) {
+                    return "Cancelled -- not looking for more directories.";
+                }
+
+                // Report on anything the workers have finished.
+                String err = queue.collect(false);
+                if (err != null)
+                    return err;
+
+                // Now check what directories are there so far,
+                // and what's new since last time:
+                DirListing.Diff diff;
+                try {
+                    diff = pollListing(feeddir, listing);
+                } catch (IOException e) {
+                    logProgress("Couldn't read dirs: IOException on "
+                                + feeddir);
+                    continue;
+                }
+                // Nothing new since the last poll.
+                progress = !diff.isEmpty();
+                if (!progress && !feedmeRan) {
+                    logProgress(".");
+                    continue;
+                }
+                // These are hrefs, so they're still URL-encoded.
+                List<String> newFeeds = new ArrayList<String>();
+                for (String subdir : diff.added()) {
+                    logProgress("  " + urlDecode(subdir));
+                    if (subdir.endsWith("/"))
+                        newFeeds.add(subdir);
+                    if (subdir.startsWith("MANIFEST")) {
+                        feedmeRan = true;
+                    }
+                }
+                // feedme doesn't delete things, but someone might.
+                for (String subdir : diff.removed())
+                    logProgress("  (" + urlDecode(subdir) + " went away)");
+
+                // feedme writes one feed at a time, so once a new
+                // feed directory shows up, the ones we saw before it
+                // are finished and we can start fetching them.
+                // We can't tell which of the new ones is still being
+                // written (the listing is alphabetical), so they
+                // wait until something newer appears, or MANIFEST does.
+                if (mPipelined && !newFeeds.isEmpty() && !feedmeRan) {
+                    for (String feed : unfinishedFeeds)
+                        queueFeedDir(feeddir + feed, urlDecode(feed),
+                                     datedir, queue);
+                    unfinishedFeeds = newFeeds;
+                }
+
+                if (feedmeRan) {
+                    // Feedme ran: get the manifest.
+                    // But just because we've seen the manifest
+                    // doesn't mean it's fully populated yet.
+                    // Loop until it's really there, or we've
+                    // waited too long for it.
+                    // Try right away: MANIFEST gets written quickly,
+                    // and fetchManifest retries a partial one itself.
+                    for (int i=0; i<10; ++i) {
+                        if (i > 0)
+                            sleep(MIN_POLL_DELAY);
+
+                        try {
+                            fetchManifest(manifestURL, queuer);
+                            EngineLog.d("FeedFetcher", "Got MANIFEST");
+                            haveManifest = true;
+                            break;
+                        } catch (IOException e) {
+                            EngineLog.d("FeedFetcher", "No MANIFEST yet");
+                            continue;
+                        }
+                    }
+                    if (!haveManifest)
+                        return "Couldn't read MANIFEST";
+
+                    // If we get here we have a nonzero manifest.
+                    mProgress.important("feedme ran");
+
+                    // Remember how long it took, for next time.
+                    if (feedmeStarted > 0)
+                        history.add(mClock.now()
+                                    - feedmeStarted);
+
+                    break;
+                }
+            }
+        }
+        EngineLog.d("FeedFetcher", "Fetched complete manifest");
+        mJournal.manifestComplete();
+        logProgress(delta.summary());
+        for (String relpath : delta.removed())
+            discard(datedir, relpath);
+
+        ////////////////////////////////////////////////////////
+        // Feedme ran and we fetched the manifest.
+        // Most of its files are already queued, or downloaded,
+        // since the queue took them as MANIFEST streamed in.
+        // Now wait for the rest.
+        EngineLog.d("FeedFetcher", "\n=======================\nDownloading");
+
+        // Bundle mode: try to get the whole day in one request.
+        // Whatever that doesn't cover (or everything, if the server
+        // has no bundle) gets fetched file by file afterward.
+        if (tryBundle && delta.hasChanges())
+            fetchBundle(feeddir, datedir, delta);
+        // Stopped during the bundle? Then don't start on the rest.
+        if (isCancelled())
+            return "Cancelling file downloads.";
+        queuer.release();
+
+        String err = queue.collect(true);
+        if (err != null)
+            return err;
+        String verified = queue.verifySummary();
+        if (verified != null)
+            logProgress(verified);
+
+        // Anything we didn't get should look new next time.
+        Set<String> skipped = new HashSet<String>(queue.failed());
+        skipped.addAll(queuer.mSkipped);
+        skipped.addAll(postponedIn(datedir));
+        try {
+            delta.save(skipped);
+        } catch (IOException e) {
+            logProgress("Couldn't save manifest: " + e.getMessage());
+        }
+
+        if (!mPostponed.isEmpty())
+            logProgress(mPostponed.size()
+                        + " images left for an unmetered network");
+        else if (!mBudget.limited() && mFetchImages
+                 && mPending.size() > 0) {
+            err = fetchPending(queue);
+            if (err != null)
+                return err;
+        }
+
+        mJournal.finish();
+        mProgress.important("Fetched feeds");
+        return FETCH_FINISHED;
+    }
+
+    // Takes MANIFEST entries as they're read and queues them for
+    // download, or in bundle mode holds on to them until we know
+    // whether the bundle covered them.
+    // In pipelined mode, anything already queued from the feed
+    // directory listings gets skipped here, so this just picks
+    // up whatever the listings missed.
+    private class ManifestQueuer implements ManifestReader.Listener {
+        String mFeedDir;
+        String mDateDir;
+        DownloadQueue mQueue;
+        ManifestDelta mDelta;
+        List<ManifestReader.Entry> mHeld = null;
+        // Entries we chose not to fetch: images, if they're off.
+        Set<String> mSkipped = new HashSet<String>();
+
+        ManifestQueuer(String feeddir, String datedir,
+                       DownloadQueue queue, ManifestDelta delta,
+                       Boolean hold) {
+            mFeedDir = feeddir;
+            mDateDir = datedir;
+            mQueue = queue;
+            mDelta = delta;
+            if (hold)
+                mHeld = new ArrayList<ManifestReader.Entry>();
+        }
+
+        public void entry(ManifestReader.Entry entry) {
+            Boolean wanted = mFetchImages || !isImage(entry.mRelPath);
+            if (!wanted)
+                mSkipped.add(entry.mRelPath);
+
+            // Same as last time, or as the last partial MANIFEST:
+            // we've already got it, or it's already queued.
+            int what = mDelta.add(entry, wanted);
+            if (what == ManifestDelta.SEEN
+                || what == ManifestDelta.UNCHANGED)
+                return;
+            // The old copy is no good now.
+            if (what == ManifestDelta.CHANGED)
+                discard(mDateDir, entry.mRelPath);
+
+            if (mHeld != null)
+                mHeld.add(entry);
+            else
+                queueEntry(entry);
+        }
+
+        // Queue anything we were holding, and stop holding.
+        void release() {
+            if (mHeld == null)
+                return;
+            List<ManifestReader.Entry> held = mHeld;
+            mHeld = null;
+            for (ManifestReader.Entry entry : held)
+                queueEntry(entry);
+        }
+
+        private void queueEntry(ManifestReader.Entry entry) {
+            if (mQueue.contains(entry.mRelPath))
+                return;
+            DownloadJob job = makeJob(entry.mRelPath,
+                                      mFeedDir + entry.mRelPath,
+                                      mDateDir, entry.mSize,
+                                      entry.mHash, mQueue.mJournal);
+            if (job != null)
+                mQueue.submit(job);
+        }
+    }
+
+    // Delete our copy of a file that's changed or gone
+    // from the server since we fetched it.
+    private void discard(String datedir, String relpath) {
+        if (relpath.endsWith("/"))
+            return;
+        File file = new File(datedir + relpath);
+        mBlobs.release(file);
+        if (file.delete())
+            EngineLog.d("FeedFetcher", "Discarded old " + relpath);
+    }
+
+    // Ask for MANIFEST with ?wait=N, which a server that supports
+    // long polling holds for up to N seconds until MANIFEST exists.
+    // A plain web server ignores the query and answers right away,
+    // so this is safe to try anywhere.
+    // Returns the HTTP status, or -1 if the request failed.
+    private int longPollManifest(String manifestURL) {
+        try {
+            HttpSession.Response resp =
+                mSession.request("GET",
+                                 manifestURL + "?wait=" + LONG_POLL_SECS,
+                                 null, null,
+                                 (LONG_POLL_SECS + 15) * 1000);
+            int status = resp.status();
+            resp.close();
+            return status;
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Long poll failed: " + e);
+            return -1;
+        }
+    }
+
+    // Decide whether a file needs downloading, and if so,
+    // make sure its directory exists and return a job for it.
+    // size and hash are from MANIFEST: -1 and null if unknown.
+    // journal is the day's FetchJournal.
+    // Returns null if it should be skipped.
+    private DownloadJob makeJob(String relpath, String furl,
+                                String datedir, long size, String hash,
+                                FetchJournal journal) {
+        // Skip directories; we'll make them later with mkdirs.
+        if (relpath.endsWith("/")) {
+            EngineLog.d("FeedDetcher", relpath + " is a directory, skipping");
+            return null;
+        }
+        if (!mFetchImages && isImage(relpath)) {
+            EngineLog.d("FeedDetcher", "Skipping image " + relpath);
+            return null;
+        }
+        // Finished before we were killed last time:
+        // no need even to look.
+        if (journal.isDone(relpath)) {
+            EngineLog.d("FeedFetcher", relpath + " done last time");
+            return null;
+        }
+        String filepath = datedir + relpath;
+        File fstat = new File(filepath);
+        if (fstat.exists()) {
+            logProgress(filepath + " is already here");
+            return null;
+        }
+
+        // Create the parent directories, if need be.
+        // Do it here rather than in the workers, so two of them
+        // don't race to make the same directory.
+        File dirfile = fstat.getParentFile();
+        EngineLog.d("FeedDetcher", "dirfile is " + dirfile);
+        if (!dirfile.exists()) {
+            EngineLog.d("FeedDetcher", "mkdirs " + dirfile);
+            dirfile.mkdirs();
+            if (!dirfile.exists()) {
+                logProgress("Skipping " + filepath
+                            + ", can't make directory "
+                            + dirfile.getPath());
+                return null;
+            }
+        }
+
+        // If MANIFEST says what's in it and we've already got that
+        // from another day or feed, no need to download it again.
+        if (isImage(relpath) && mBlobs.has(hash)) {
+            try {
+                if (mBlobs.place(hash, fstat)) {
+                    logProgress("Already had " + relpath);
+                    return null;
+                }
+            } catch (IOException e) {
+                EngineLog.d("FeedFetcher", "Couldn't reuse " + hash
+                            + " for " + relpath + ": " + e);
+            }
+        }
+
+        // Too big for a metered connection? If MANIFEST didn't
+        // say, the download itself checks once the server does.
+        if (isImage(relpath) && !mBudget.fits(size)) {
+            postpone(fstat, furl);
+            return null;
+        }
+
+        DownloadJob job = new DownloadJob(relpath, furl, fstat);
+        job.mSize = size;
+        job.mHash = hash;
+        job.mJournal = journal;
+        return job;
+    }
+
+    // Leave an image for the next fetch on an unmetered network.
+    void postpone(File file, String url) {
+        String path = file.getPath().substring(mLocalDir.length() + 1);
+        mPending.add(path, url);
+        mPostponed.add(path);
+        EngineLog.d("FeedFetcher", "Postponing " + path);
+    }
+
+    // The images postponed from the day in datedir, by path
+    // relative to it.
+    private Set<String> postponedIn(String datedir) {
+        String prefix = datedir.substring(mLocalDir.length() + 1);
+        Set<String> postponed = new HashSet<String>();
+        synchronized (mPostponed) {
+            for (String path : mPostponed)
+                if (path.startsWith(prefix))
+                    postponed.add(path.substring(prefix.length()));
+        }
+        return postponed;
+    }
+
+    // On an unmetered network: fetch the images we left behind
+    // on earlier, metered fetches, for whichever of those days
+    // are still around. Their paths are relative to mLocalDir,
+    // e.g. "10-17-Sat/slashdot/img/photo.jpg".
+    // Returns null, or a message saying why we gave up.
+    private String fetchPending(DownloadQueue queue) {
+        Map<String, String> pending = mPending.entries();
+        List<DownloadJob> jobs = new ArrayList<DownloadJob>();
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            File file = new File(mLocalDir, e.getKey());
+            // Already got it, or the day's been deleted.
+            if (file.exists() || !file.getParentFile().exists()) {
+                mPending.remove(e.getKey());
+                continue;
+            }
+            DownloadJob job = new DownloadJob(e.getKey(), e.getValue(),
+                                              file);
+            jobs.add(job);
+            queue.submit(job);
+        }
+        if (jobs.isEmpty())
+            return null;
+        logProgress("Fetching " + jobs.size()
+                    + " images left from metered fetches");
+
+        String err = queue.collect(true);
+        for (DownloadJob job : jobs)
+            if (job.mFile.exists())
+                mPending.remove(job.mRelPath);
+        return err;
+    }
+
+    // Bundle mode: fetch the day as a single archive,
+    // feeddir minus its slash plus .tar.gz or .zip,
+    // unpacking it as it arrives.
+    // Returns false if the server doesn't have one, or it failed
+    // partway, in which case we fall back to fetching files
+    // one at a time (keeping anything that was already unpacked).
+    // Each file is checked against delta's MANIFEST as it's unpacked,
+    // and journalled like a download, so a kill partway through
+    // leaves nothing that looks finished and isn't.
+    private Boolean fetchBundle(String feeddir, final String datedir,
+                                final ManifestDelta delta) {
+        String base = feeddir.substring(0, feeddir.length() - 1);
+        String[] suffixes = { ".tar.gz", ".zip" };
+        for (String suffix : suffixes) {
+            String bundleURL = base + suffix;
+            HttpSession.Response resp;
+            try {
+                resp = mSession.get(bundleURL);
+            } catch (IOException e) {
+                logProgress("Couldn't request " + bundleURL);
+                return false;
+            }
+            try {
+                if (resp.status() != 200) {
+                    EngineLog.d("FeedFetcher", "No bundle at " + bundleURL
+                                + ": " + resp.status());
+                    continue;
+                }
+                logProgress("Fetching bundle " + bundleURL);
+                File dd = new File(datedir);
+                BundleExtractor extractor = new BundleExtractor(dd, mWriter,
+                    new BundleExtractor.Listener() {
+                        public Boolean wanted(String relpath) {
+                            return mFetchImages || !isImage(relpath);
+                        }
+                        public FileVerifier verifier(String relpath) {
+                            ManifestReader.Entry entry =
+                                delta.entry(relpath);
+                            // Images get a SHA-256 for the BlobStore.
+                            if (entry == null)
+                                return new FileVerifier(null, -1,
+                                                        isImage(relpath));
+                            return new FileVerifier(entry.mHash,
+                                                    entry.mSize,
+                                                    isImage(relpath));
+                        }
+                        public void extracted(String relpath,
+                                              long bytes, String sha256) {
+                            logProgress("Unpacked " + relpath);
+                            mJournal.done(relpath);
+                            if (!isImage(relpath) || sha256 == null)
+                                return;
+                            File f = new File(datedir + relpath);
+                            try {
+                                mBlobs.adopt(f, sha256);
+                            } catch (IOException e) {
+                                EngineLog.d("FeedFetcher", "Couldn't store "
+                                            + relpath + ": " + e);
+                            }
+                        }
+                        public Boolean cancelled() {
+                            return isCancelled();
+                        }
+                    });
+                extractor.setStripPrefix(dd.getName());
+                if (suffix.equals(".zip"))
+                    extractor.extractZip(resp.body());
+                else
+                    extractor.extractTarGz(resp.body());
+                logProgress("Unpacked " + extractor.numFiles()
+                            + " files from " + bundleURL);
+                if (extractor.numBad() > 0)
+                    logProgress(extractor.numBad() + " files in the bundle"
+                                + " didn't match MANIFEST;"
+                                + " fetching them one at a time");
+                return true;
+            } catch (IOException e) {
+                if (isCancelled())
+                    logProgress("Stopped unpacking " + bundleURL);
+                else
+                    logProgress("Bundle failed: " + e.getMessage()
+                                + "; fetching files one at a time");
+                return false;
+            } finally {
+                resp.close();
+            }
+        }
+        logProgress("No bundle on the server");
+        return false;
+    }
+
+    // Pipelined mode: queue everything in a finished feed directory,
+    // reading its listing (and any subdirectory listings) since
+    // there's no MANIFEST yet.
+    // dirurl is the directory's URL, built from hrefs, so it's
+    // encoded; relpath is the same directory relative to the day
+    // directory, decoded, e.g. "slashdot/".
+    private void queueFeedDir(String dirurl, String relpath,
+                              String datedir, DownloadQueue queue) {
+        List<String> hrefs;
+        try {
+            HttpSession.Response resp = mSession.get(dirurl);
+            try {
+                resp.checkStatus();
+                hrefs = DirListing.hrefs(resp.body());
+            } finally {
+                resp.close();
+            }
+        } catch (IOException e) {
+            // No matter: MANIFEST will tell us about it later.
+            EngineLog.d("FeedFetcher", "Couldn't list " + dirurl);
+            return;
+        }
+        logProgress("Fetching " + relpath + " early");
+        for (String href : hrefs) {
+            String name = urlDecode(href);
+            // Only follow links down into this directory.
+            if (name.startsWith("/") || name.startsWith("?")
+                || name.contains(":") || name.startsWith(".."))
+                continue;
+            if (name.endsWith("/")) {
+                queueFeedDir(dirurl + href, relpath + name, datedir, queue);
+                continue;
+            }
+            if (queue.contains(relpath + name))
+                continue;
+            DownloadJob job = makeJob(relpath + name, dirurl + href,
+                                      datedir, -1, null, mJournal);
+            if (job != null)
+                queue.submit(job);
+        }
+    }
+
+    // Downloads jobs mNumDownloaders at a time on a pool of worker
+    // threads, and keeps track of how they went.
+    // Jobs wait in a priority queue rather than going in the order
+    // they were submitted, so text comes ahead of images (see
+    // DownloadJob.compareTo) and feeds become readable sooner.
+    // What happens to ones that fail is up to the RetryPolicy.
+    private class DownloadQueue {
+        ThreadPoolExecutor mPool;
+        BlockingQueue<DownloadJob> mFinished =
+            new LinkedBlockingQueue<DownloadJob>();
+
+        // Relative paths of everything submitted, so the same file
+        // doesn't get queued twice.
+        Set<String> mQueued = new HashSet<String>();
+        // And the ones we didn't manage to get.
+        Set<String> mFailed = new HashSet<String>();
+
+        int mNumDone = 0;
+        // Submitted (or resubmitted) but not yet collected.
+        int mOutstanding = 0;
+        long mNextSeq = 0;
+
+        // Files checked against MANIFEST's checksums,
+        // and the ones that didn't match at first.
+        int mNumVerified = 0;
+        Set<String> mMismatched = new HashSet<String>();
+        int mNumFixed = 0;
+
+        // Failed files waiting for their backoff to run out,
+        // and ones that are out of tries, waiting for the final pass.
+        RetryPolicy mPolicy = new RetryPolicy(mClock);
+
+        // Decides how many workers to run, or null for a fixed number.
+        AimdController mAimd = null;
+        List<DownloadJob> mDeferred = new ArrayList<DownloadJob>();
+        List<DownloadJob> mFinalPass = new ArrayList<DownloadJob>();
+        Boolean mDidFinalPass = false;
+
+        // The day the jobs are for, and how far back it is
+        // (0 for today; see DownloadJob.mAge).
+        FetchJournal mJournal;
+        int mAge = 0;
+        // Catch-up days' queues use today's workers.
+        Boolean mOwnsPool = true;
+        // Put before paths in progress messages, to say which day
+        // they're from: "" for today.
+        String mPrefix = "";
+
+        DownloadQueue(FetchJournal journal) {
+            mJournal = journal;
+            if (mAdaptive)
+                mAimd = new AimdController(mNumDownloaders, 1,
+                                           mMaxDownloaders, mClock);
+            mPool = new ThreadPoolExecutor(mNumDownloaders,
+                                           mNumDownloaders,
+                                           0L, TimeUnit.MILLISECONDS,
+                              new PriorityBlockingQueue<Runnable>());
+        }
+
+        // A queue for an older day, sharing today's workers
+        // (and their AIMD window) rather than starting more.
+        DownloadQueue(DownloadQueue today, int age, FetchJournal journal) {
+            mJournal = journal;
+            mAge = age;
+            mAimd = today.mAimd;
+            mPool = today.mPool;
+            mOwnsPool = false;
+        }
+
+        // Make the pool match the AIMD window.
+        // Shrinking it doesn't interrupt anything: extra workers
+        // finish the file they're on and then exit.
+        private void resize() {
+            if (mAimd == null)
+                return;
+            int window = mAimd.window();
+            int size = mPool.getCorePoolSize();
+            if (window > size) {
+                mPool.setMaximumPoolSize(window);
+                mPool.setCorePoolSize(window);
+            } else if (window < size) {
+                mPool.setCorePoolSize(window);
+                mPool.setMaximumPoolSize(window);
+            }
+            mProgress.setStatus(mAimd.summary());
+        }
+
+        Boolean isEmpty() {
+            return mQueued.isEmpty();
+        }
+
+        Boolean contains(String relpath) {
+            return mQueued.contains(relpath);
+        }
+
+        Set<String> failed() {
+            return mFailed;
+        }
+
+        // e.g. "Verified 120 files; 2 checksum mismatches, 2 fixed
+        // by downloading again", or null if nothing had a checksum.
+        String verifySummary() {
+            if (mNumVerified == 0 && mMismatched.isEmpty())
+                return null;
+            String s = "Verified " + mNumVerified + " files";
+            if (!mMismatched.isEmpty())
+                s += "; " + mMismatched.size()
+                    + " checksum mismatches, " + mNumFixed
+                    + " fixed by downloading again";
+            return s;
+        }
+
+        void submit(DownloadJob job) {
+            mQueued.add(job.mRelPath);
+            job.mAge = mAge;
+            enqueue(job);
+        }
+
+        private void enqueue(DownloadJob job) {
+            job.mSeq = mNextSeq++;
+            job.mError = null;
+            ++job.mAttempts;
+            ++mOutstanding;
+            mPool.execute(new Worker(job));
+        }
+
+        // Put back in line any deferred jobs whose time has come.
+        // Returns when the next one will be ready, or -1 if none
+        // are waiting.
+        private long releaseDeferred() {
+            long now = mClock.now();
+            long next = -1;
+            for (int i = 0; i < mDeferred.size(); ) {
+                DownloadJob job = mDeferred.get(i);
+                if (job.mNotBefore <= now) {
+                    mDeferred.remove(i);
+                    enqueue(job);
+                    continue;
+                }
+                if (next < 0 || job.mNotBefore < next)
+                    next = job.mNotBefore;
+                ++i;
+            }
+            return next;
+        }
+
+        // Everything else is done: give the files that ran out
+        // of tries one more go each.
+        private void startFinalPass() {
+            mDidFinalPass = true;
+            logProgress("Final try for " + mFinalPass.size()
+                        + " files");
+            for (DownloadJob job : mFinalPass) {
+                job.mFinalTry = true;
+                job.mNotBefore = mPolicy.pausedUntil();
+                mDeferred.add(job);
+            }
+            mFinalPass.clear();
+        }
+
+        private void giveUp(DownloadJob job, int kind) {
+            ++mNumDone;
+            mFailed.add(job.mRelPath);
+            logProgress("Giving up on " + job.mRelPath + ": "
+                        + RetryPolicy.KIND_NAMES[kind] + " ("
+                        + job.mError.getMessage() + ")");
+        }
+
+        // Report each file as it finishes.
+        // If wait is true, keep going until everything's done,
+        // including retries and the final pass;
+        // otherwise just handle whatever has finished already.
+        // Returns null if all is well, else a message saying
+        // why we gave up.
+        String collect(Boolean wait) {
+            while (true) {
+                if (isCancelled())
+                    return "Cancelling file downloads.";
+
+                long nextDeferred = releaseDeferred();
+                if (mOutstanding == 0) {
+                    if (!wait)
+                        return null;
+                    if (nextDeferred < 0) {
+                        if (mFinalPass.isEmpty() || mDidFinalPass)
+                            return null;
+                        startFinalPass();
+                        continue;
+                    }
+                }
+
+                DownloadJob job;
+                try {
+                    if (!wait) {
+                        job = mFinished.poll();
+                    } else if (nextDeferred >= 0) {
+                        // Wake up in time to put it back in line.
+                        long timeout = nextDeferred - mClock.now();
+                        job = mFinished.poll(Math.max(timeout, 1),
+                                             TimeUnit.MILLISECONDS);
+                    } else {
+                        job = mFinished.take();
+                    }
+                } catch (InterruptedException e) {
+                    // cancel(true) interrupts us while we wait.
+                    Thread.currentThread().interrupt();
+                    return "Interrupted: cancelling file downloads.";
+                }
+                if (job == null) {
+                    if (!wait)
+                        return null;
+                    continue;
+                }
+                --mOutstanding;
+                resize();
+
+                if (job.succeeded()) {
+                    mPolicy.succeeded();
+                    ++mNumDone;
+                    if (job.mVerified)
+                        ++mNumVerified;
+                    if (mMismatched.contains(job.mRelPath))
+                        ++mNumFixed;
+                    // The Progress can batch these itself, and
+                    // roll them up into a summary line.
+                    mProgress.fileDone(mPrefix + job.mRelPath, job.mBytes,
+                                       mNumDone, mQueued.size());
+                    continue;
+                }
+
+                // Not a failure: it was too big for the budget.
+                if (job.mError instanceof BandwidthBudget.DeferException) {
+                    ++mNumDone;
+                    postpone(job.mFile, job.mUrl);
+                    continue;
+                }
+
+                int kind = RetryPolicy.classify(job.mError);
+                mPolicy.failed(kind);
+                if (kind == RetryPolicy.CHECKSUM)
+                    mMismatched.add(job.mRelPath);
+
+                // A 404, or a 403 or the like: no point asking again.
+                // Nor if this was its last chance.
+                if (!RetryPolicy.retryable(kind) || job.mFinalTry) {
+                    giveUp(job, kind);
+                } else if (mPolicy.shouldRetry(job, kind)) {
+                    // Back of the line, once it's waited a bit.
+                    job.mNotBefore = mPolicy.nextTry(job);
+                    job.mRetry = true;
+                    mDeferred.add(job);
+                    logProgress("Couldn't download " + job.mRelPath
+                                + ": " + RetryPolicy.KIND_NAMES[kind]
+                                + "; will retry");
+                } else {
+                    mFinalPass.add(job);
+                }
+
+                // Only when nothing has worked for ages do we
+                // decide the network's gone and stop.
+                if (mPolicy.hopeless())
+                    return "Nothing has downloaded for "
+                        + mPolicy.mGiveUpAfter / 1000
+                        + " seconds: giving up.";
+            }
+        }
+
+        void shutdown() {
+            if (mOwnsPool)
+                mPool.shutdownNow();
+        }
+
+        // What the pool runs: ordered by its job, so the
+        // PriorityBlockingQueue hands out the most urgent first.
+        class Worker implements Runnable, Comparable<Worker> {
+            DownloadJob mJob;
+
+            Worker(DownloadJob job) {
+                mJob = job;
+            }
+
+            public void run() {
+                long start = mClock.now();
+                try {
+                    downloadJob(mJob);
+                } catch (RuntimeException e) {
+                    mJob.mError = new IOException("Worker crashed: "
+                                                  + e);
+                }
+                if (mAimd != null)
+                    mAimd.record(mJob.mBytes,
+                                 mClock.now() - start,
+                                 mJob.mError
+                                     instanceof SocketTimeoutException);
+                mFinished.add(mJob);
+            }
+
+            public int compareTo(Worker other) {
+                return mJob.compareTo(other.mJob);
+            }
+        }
+    }
+
+    private void sleep(long millisecs) {
+        try {
+            mClock.sleep(millisecs);
+        } catch (InterruptedException e) {
+            // Thread.sleep() requires that we catch this.
+            // But throwing this error clears the interrupt bit,
+            // so in case we actually needed to be interrupted:
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void logProgress(String s) {
+        mProgress.message(s);
+        EngineLog.d("FeedFetcher", s);
+    }
+
+    // e.g. "12.3 MB"
+    static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return (bytes / 1024) + " KB";
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    // An href from a listing as a file name, for local paths
+    // and for showing people.
+    static String urlDecode(String href) {
+        try {
+            return URLDecoder.decode(href, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return href;
+        } catch (IllegalArgumentException e) {
+            // A stray % that isn't an escape.
+            return href;
+        }
+    }
+
+    static Boolean isImage(String path) {
+        String fl = path.toLowerCase();
+        return (fl.endsWith(".jpg") || fl.endsWith("jpeg")
+                || fl.endsWith(".svg")
+                || fl.endsWith(".png") || fl.endsWith("gif"));
+    }
+
+    // Given a URL, fetches the page content over the shared
+    // HttpSession and returns it as a string. Synchronous.
+    // Don't use this for non-string content, like files with image data.
+    private String downloadUrl(String urlstr) throws IOException {
+        EngineLog.d("FeedFetcher", "downloadUrl " + urlstr);
+        HttpSession.Response resp = mSession.get(urlstr);
+        try {
+            EngineLog.d("FeedFetcher",
+                        "Response code: " + resp.status() + " for " + urlstr);
+
+            // Throws IOException for an error status, e.g. 404,
+            // just like HttpURLConnection.getInputStream() did.
+            resp.checkStatus();
+
+            // Convert the body into a string
+            String contentAsString = readIt(resp.body());
+            EngineLog.d("FeedFetcher", "Read the output");
+            return contentAsString;
+
+            // Closing the response reads anything left in the body,
+            // so the connection can go back into the pool.
+        } finally {
+            resp.close();
+        }
+    }
+
+    // Download one job's file, recording the result in the job.
+    // This runs on one of the worker threads, so it mustn't touch the UI.
+    void downloadJob(DownloadJob job) {
+        // Images left from earlier fetches have no journal.
+        if (job.mJournal != null)
+            job.mJournal.started(job.mRelPath);
+        try {
+            // Images need their SHA-256 for the BlobStore anyway,
+            // so it's worked out as they're written.
+            Boolean image = isImage(job.mRelPath);
+            FileVerifier verifier = new FileVerifier(job.mHash, job.mSize,
+                                                     image);
+            job.mBytes = downloadUrlToFile(job.mUrl, job.mFile, verifier);
+            job.mVerified = verifier.hasChecksum();
+            // Images go into the shared store, in case another feed
+            // or another day has the same one.
+            if (image)
+                mBlobs.adopt(job.mFile, verifier.sha256());
+            if (job.mJournal != null)
+                job.mJournal.done(job.mRelPath);
+        } catch (IOException e) {
+            job.mError = e;
+        }
+    }
+
+    // A page we've fetched before, with the validators the server
+    // sent for it, so we can ask "has this changed?" rather than
+    // fetching the whole thing again every time we poll.
+    static class CachedPage {
+        String mETag = null;
+        String mLastModified = null;
+    }
+
+    Map<String, CachedPage> mPageCache =
+        Collections.synchronizedMap(new HashMap<String, CachedPage>());
+
+    // Look at a directory listing again, reading it straight from
+    // the response into listing, and return what's changed since last
+    // time. Sends If-None-Match / If-Modified-Since if we've seen it
+    // before, and a 304 means nothing has.
+    // Servers that don't send validators (Apache's directory listings
+    // don't, unless IndexOptions TrackModified is set) still work:
+    // we just read the whole listing and find nothing new in it.
+    DirListing.Diff pollListing(String urlstr, DirListing listing)
+        throws IOException {
+        HttpSession.Response resp = getConditional(urlstr);
+        try {
+            if (resp.status() == 304 && mPageCache.containsKey(urlstr)) {
+                EngineLog.d("FeedFetcher", "Not modified: " + urlstr);
+                return new DirListing.Diff();
+            }
+            resp.checkStatus();
+            DirListing.Diff diff = listing.update(resp.body());
+            // Only now that we've read it all, so a 304 means
+            // we've seen everything in it.
+            rememberValidators(urlstr, resp);
+            return diff;
+        } finally {
+            resp.close();
+        }
+    }
+
+    // GET a URL, conditional on its having changed if we've got
+    // validators for it. The caller must close the response.
+    HttpSession.Response getConditional(String urlstr) throws IOException {
+        CachedPage old = mPageCache.get(urlstr);
+        Map<String, String> headers = new HashMap<String, String>();
+        if (old != null) {
+            // ETags change when the size does, so prefer them.
+            if (old.mETag != null)
+                headers.put("If-None-Match", old.mETag);
+            else if (old.mLastModified != null)
+                headers.put("If-Modified-Since", old.mLastModified);
+        }
+        return mSession.get(urlstr, headers);
+    }
+
+    // Save the validators from a successful response for next time.
+    CachedPage rememberValidators(String urlstr, HttpSession.Response resp) {
+        CachedPage page = new CachedPage();
+        page.mETag = resp.header("ETag");
+        // Last-Modified only has one-second resolution, so if the
+        // file changed in the same second the server answered,
+        // it could change again without the date changing.
+        // Don't trust it in that case (RFC 7232 calls it "weak").
+        String lastmod = resp.header("Last-Modified");
+        if (lastmod != null
+            && olderThanASecond(lastmod, resp.header("Date")))
+            page.mLastModified = lastmod;
+        mPageCache.put(urlstr, page);
+        return page;
+    }
+
+    // Is the HTTP date lastmod at least a second before date?
+    private static Boolean olderThanASecond(String lastmod, String date) {
+        if (date == null)
+            return false;
+        SimpleDateFormat httpdate =
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        try {
+            return httpdate.parse(date).getTime()
+                - httpdate.parse(lastmod).getTime() >= 1000;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    // Downloads are written to a sibling file with this suffix,
+    // and only renamed to the real name once they're complete.
+    // So if the real file exists, it's whole; if only the partial
+    // exists, we were interrupted and can pick up where we left off.
+    static final String PARTIAL_SUFFIX = ".part";
+
+    // Given a URL, fetches the content over the shared HttpSession
+    // as a byte stream and saves it to file.
+    // If an earlier download of the same file was interrupted,
+    // ask the server for just the rest of it.
+    // The verifier checksums the bytes on their way to disk, and if
+    // they don't match what MANIFEST said, the file is thrown away
+    // and this throws a FileVerifier.ChecksumException.
+    // Returns the number of bytes downloaded this time.
+    private long downloadUrlToFile(String urlstr, File file,
+                                   FileVerifier verifier)
+        throws IOException {
+
+        EngineLog.d("FeedFetcher", "downloadUrlToFile " + urlstr);
+
+        File partial = new File(file.getPath() + PARTIAL_SUFFIX);
+        long have = partial.length();   // 0 if it isn't there
+
+        // feedme doesn't rewrite files once they're written,
+        // so there's no need for If-Range to guard against the file
+        // having changed since we fetched the first part.
+        Map<String, String> headers = new HashMap<String, String>();
+        if (have > 0)
+            headers.put("Range", "bytes=" + have + "-");
+        // Images are compressed already; don't make the server try.
+        if (isImage(urlstr))
+            headers.put("Accept-Encoding", "identity");
+
+        HttpSession.Response resp = mSession.get(urlstr, headers);
+        // For the budget: what we set aside, and what we really got.
+        long reserved = 0;
+        long got = 0;
+        try {
+            int response = resp.status();
+            EngineLog.d("FeedFetcher", "Response code: " + response);
+
+            Boolean resuming = false;
+            if (have > 0 && (response == 416
+                             || (response == 206
+                                 && rangeStart(resp) != have))) {
+                // 416 means the partial is as long as the whole file
+                // or longer, so something's wrong with it; likewise if
+                // the server sent a different range than we asked for.
+                // Throw it away and start over.
+                EngineLog.d("FeedFetcher", "Can't resume " + partial
+                            + ", starting over");
+                resp.close();
+                partial.delete();
+                verifier.reset();
+                return downloadUrlToFile(urlstr, file, verifier);
+            }
+            if (response == 206) {
+                resuming = true;
+                EngineLog.d("FeedFetcher", "Resuming " + file + " at " + have);
+                verifier.prime(partial);
+            } else {
+                // A 200 means the server ignored the Range and is
+                // sending the whole file.
+                if (response != 200)
+                    logProgress("Response code: " + response);
+                have = 0;
+            }
+            resp.checkStatus();
+
+            long expected = -1;
+            if (resp.contentLength() >= 0)
+                expected = have + resp.contentLength();
+
+            // Now we know how big it is, is there room for it?
+            // Images are sent uncompressed, so Content-Length is it.
+            if (isImage(urlstr)) {
+                if (!mBudget.reserveImage(resp.contentLength()))
+                    throw new BandwidthBudget.DeferException(
+                        file.getName() + " is too big for now");
+                reserved = Math.max(0, resp.contentLength());
+            }
+
+            // The writer copies in big chunks through a pooled buffer,
+            // checksumming on the way.
+            InputStream is = resp.body();
+            DownloadWriter.Sink sink = mWriter.open(partial, resuming,
+                                                    expected);
+            long total = have;
+            try {
+                int len;
+                while ((len = sink.transfer(is, verifier)) != -1) {
+                    total += len;
+                    got += len;
+                    mBudget.throttle(len);
+                    // Leave the partial file for next time.
+                    if (mStopped)
+                        throw new IOException("Stopped downloading "
+                                              + urlstr);
+                }
+                sink.finish();
+            } finally {
+                sink.close();
+            }
+
+            if (expected >= 0 && total != expected)
+                throw new IOException("Only got " + total + " of "
+                                      + expected + " bytes of " + urlstr);
+
+            // The whole thing arrived, but is it right? If not,
+            // resuming won't help, so start from scratch next time.
+            try {
+                verifier.check(file.getName(), total);
+            } catch (FileVerifier.ChecksumException e) {
+                partial.delete();
+                throw e;
+            }
+
+            // Commit it. On the same filesystem, rename is atomic,
+            // so nobody ever sees a half-written file under the real name.
+            if (!partial.renameTo(file))
+                throw new IOException("Couldn't rename " + partial
+                                      + " to " + file);
+            return total - have;
+
+            // If we bailed out early, close() gives up on the connection
+            // rather than reading the rest of a big file.
+        } finally {
+            resp.close();
+            // Count what we actually got, whatever we'd reserved.
+            mBudget.settle(reserved, got);
+        }
+    }
+
+    // Where a 206 response's Content-Range says it starts,
+    // e.g. 1000 for "bytes 1000-1999/2000", or -1 if we can't tell.
+    private static long rangeStart(HttpSession.Response resp) {
+        String range = resp.header("Content-Range");
+        if (range == null)
+            return -1;
+        Matcher m = Pattern.compile("bytes\\s+(\\d+)-").matcher(range);
+        if (!m.find())
+            return -1;
+        return Long.parseLong(m.group(1));
+    }
+
+    // Reads an InputStream and converts it to a String.
+    // http://stackoverflow.com/a/5445161
+    public static String readIt(InputStream stream)
+        throws IOException, UnsupportedEncodingException {
+        java.util.Scanner s = new java.util.Scanner(stream).useDelimiter("\\A");
+        return s.hasNext() ? s.next() : "";
+    }
+}
@@ -0,0 +1,185 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * FetchJournal: a running record of a fetch in progress, so that if
+ * Android kills us partway through, the next fetch can carry on from
+ * where this one stopped rather than starting over.
+ *
+ * It's kept in the day directory as .fetch-journal, and only ever
+ * appended to, one record per line:
+ *
+ *   begin<TAB>manifest URL<TAB>time    a fetch of this day started
+ *   triggered<TAB>time                 we asked urlrss.cgi to run feedme
+ *   manifest                           we've read the whole MANIFEST
+ *   start<TAB>relpath                  a worker started on a file
+ *   done<TAB>relpath                   and finished it
+ *
+ * A fetch that finishes deletes the journal. So if there's one when
+ * a fetch begins, the last one died: feedme has already been started
+ * (no need to ask again, which would run it twice), and files marked
+ * done are on disk already (no need to look). Files that were started
+ * but not done get picked up from their .part files as usual.
+ *
+ * A line cut off partway by the process dying just doesn't parse,
+ * and is ignored.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class FetchJournal {
+
+    static final String JOURNAL_FILE = ".fetch-journal";
+
+    File mFile;
+    FileOutputStream mOut = null;
+
+    // What the last, unfinished fetch of this day got up to.
+    Boolean mResumed = false;
+    long mTriggered = -1;
+    Boolean mHadManifest = false;
+    Set<String> mDone = new HashSet<String>();
+    Set<String> mInFlight = new HashSet<String>();
+
+    // Open the journal for datedir, reading whatever's there from an
+    // earlier fetch of the same manifestURL, and start a new record.
+    public FetchJournal(File datedir, String manifestURL) {
+        mFile = new File(datedir, JOURNAL_FILE);
+        if (mFile.exists())
+            load(manifestURL);
+        try {
+            // Start afresh if what's there was no use, but otherwise
+            // keep it: if we die again, we'll want it all again.
+            mOut = new FileOutputStream(mFile, mResumed);
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't open " + mFile + ": " + e);
+            return;
+        }
+        if (!mResumed)
+            record("begin\t" + manifestURL + "\t"
+                   + System.currentTimeMillis(), true);
+    }
+
+    private void load(String manifestURL) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(mFile));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    String what = parts[0];
+                    if (what.equals("begin") && parts.length >= 2) {
+                        // Some other fetch's: not ours to resume.
+                        if (!parts[1].equals(manifestURL))
+                            return;
+                        mResumed = true;
+                    } else if (!mResumed) {
+                        // Nothing counts until we've seen begin.
+                        return;
+                    } else if (what.equals("triggered")
+                               && parts.length >= 2) {
+                        try {
+                            mTriggered = Long.parseLong(parts[1]);
+                        } catch (NumberFormatException e) {
+                        }
+                    } else if (what.equals("manifest")) {
+                        mHadManifest = true;
+                    } else if (what.equals("start") && parts.length >= 2) {
+                        mInFlight.add(parts[1]);
+                    } else if (what.equals("done") && parts.length >= 2) {
+                        mInFlight.remove(parts[1]);
+                        mDone.add(parts[1]);
+                    }
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't read " + mFile + ": " + e);
+        }
+    }
+
+    // Is this picking up after a fetch that didn't finish?
+    public Boolean resumed() {
+        return mResumed;
+    }
+
+    // When the last fetch started feedme, or -1 if it didn't.
+    public long triggered() {
+        return mTriggered;
+    }
+
+    public Boolean hadManifest() {
+        return mHadManifest;
+    }
+
+    public synchronized Boolean isDone(String relpath) {
+        return mDone.contains(relpath);
+    }
+
+    public int numDone() {
+        return mDone.size();
+    }
+
+    public int numInFlight() {
+        return mInFlight.size();
+    }
+
+    public void feedmeTriggered(long when) {
+        mTriggered = when;
+        record("triggered\t" + when, true);
+    }
+
+    public void manifestComplete() {
+        mHadManifest = true;
+        record("manifest", true);
+    }
+
+    public void started(String relpath) {
+        record("start\t" + relpath, false);
+    }
+
+    public synchronized void done(String relpath) {
+        mDone.add(relpath);
+        record("done\t" + relpath, false);
+    }
+
+    // All done: nothing to resume next time.
+    public synchronized void finish() {
+        close();
+        mFile.delete();
+    }
+
+    // Stop writing, leaving the journal for next time.
+    public synchronized void close() {
+        if (mOut == null)
+            return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+        }
+        mOut = null;
+    }
+
+    // Each line goes straight to the kernel, which is all it takes
+    // to survive the process being killed. Only the milestones are
+    // worth an fsync as well: a lost done line costs a stat or a
+    // Range request next time, but a lost triggered line costs
+    // a second run of feedme.
+    private synchronized void record(String line, Boolean sync) {
+        if (mOut == null)
+            return;
+        try {
+            mOut.write((line + "\n").getBytes("UTF-8"));
+            if (sync)
+                mOut.getFD().sync();
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't write to " + mFile + ": " + e);
+        }
+    }
+}
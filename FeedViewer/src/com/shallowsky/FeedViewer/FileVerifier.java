@@ -0,0 +1,132 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * FileVerifier: check a download against the size and checksum
+ * MANIFEST gave for it, computing the checksum as the bytes go by
+ * on their way to disk rather than reading the file again afterward.
+ *
+ * The hash field in MANIFEST can be a SHA-256 (64 hex digits) or,
+ * for a cheaper check, a CRC32 (crc32: and 8 hex digits).
+ *
+ * Images always get a SHA-256 even without one to check against,
+ * since that's what BlobStore files them under.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+public class FileVerifier {
+
+    // Thrown when a download doesn't match. It's an IOException,
+    // so the download queue retries it like any other failure.
+    public static class ChecksumException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ChecksumException(String message) {
+            super(message);
+        }
+    }
+
+    long mExpectedSize;
+    String mExpectedSha256 = null;
+    long mExpectedCrc = -1;
+    Boolean mWantSha256;
+
+    MessageDigest mSha256 = null;
+    CRC32 mCrc = null;
+    String mSha256Hex = null;
+
+    // hash and size are as MANIFEST gave them: null and -1 if it didn't.
+    // wantSha256 says to compute a SHA-256 even if there's nothing
+    // to check it against.
+    public FileVerifier(String hash, long size, Boolean wantSha256) {
+        mExpectedSize = size;
+        mWantSha256 = wantSha256;
+        if (hash != null) {
+            if (hash.startsWith("crc32:")) {
+                try {
+                    mExpectedCrc = Long.parseLong(hash.substring(6), 16);
+                } catch (NumberFormatException e) {
+                    mExpectedCrc = -1;
+                }
+            } else if (hash.length() == 64) {
+                mExpectedSha256 = hash;
+                mWantSha256 = true;
+            }
+        }
+        reset();
+    }
+
+    // Is there anything to check, beyond the length?
+    public Boolean hasChecksum() {
+        return mExpectedSha256 != null || mExpectedCrc >= 0;
+    }
+
+    // Start over, for when a download has to restart from scratch.
+    public void reset() {
+        mSha256Hex = null;
+        if (mWantSha256) {
+            try {
+                mSha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Android has it, but just in case:
+                mSha256 = null;
+                mExpectedSha256 = null;
+            }
+        }
+        if (mExpectedCrc >= 0)
+            mCrc = new CRC32();
+    }
+
+    // Count some bytes on their way to disk.
+    public void update(byte[] buf, int off, int len) {
+        if (mSha256 != null)
+            mSha256.update(buf, off, len);
+        if (mCrc != null)
+            mCrc.update(buf, off, len);
+    }
+
+    // When resuming, the part we already have has to be counted too.
+    // That's a read of the partial file, but only of that.
+    public void prime(File partial) throws IOException {
+        if (mSha256 == null && mCrc == null)
+            return;
+        InputStream in = new FileInputStream(partial);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1)
+                update(buf, 0, len);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Once everything's been written: throws ChecksumException
+    // if it isn't what MANIFEST said.
+    public void check(String name, long total) throws ChecksumException {
+        if (mExpectedSize >= 0 && total != mExpectedSize)
+            throw new ChecksumException(name + " is " + total
+                                        + " bytes, should be "
+                                        + mExpectedSize);
+        if (mSha256 != null) {
+            mSha256Hex = BlobStore.hex(mSha256.digest());
+            if (mExpectedSha256 != null
+                && !mExpectedSha256.equals(mSha256Hex))
+                throw new ChecksumException("SHA-256 mismatch on " + name);
+        }
+        if (mCrc != null && mCrc.getValue() != mExpectedCrc)
+            throw new ChecksumException("CRC32 mismatch on " + name);
+    }
+
+    // The SHA-256 of what was written, once check() has passed;
+    // null if we weren't computing one.
+    public String sha256() {
+        return mSha256Hex;
+    }
+}
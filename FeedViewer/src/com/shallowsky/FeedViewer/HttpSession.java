@@ -0,0 +1,435 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * HttpSession: the HTTP requests for one fetch, made with
+ * HttpURLConnection, so a fetch of hundreds of little files doesn't
+ * pay for a new TCP (and maybe TLS) handshake on every one of them.
+ *
+ * HttpURLConnection already keeps connections alive and pools them
+ * (on Android it's OkHttp underneath), along with TLS, proxies,
+ * redirects and chunked bodies. But a connection only goes back in
+ * the pool if its body or error stream is read to the end and closed,
+ * and it's easy to forget one. So every request here returns a
+ * Response, and closing the Response takes care of that.
+ *
+ * The session counts requests made, and new HTTPS connections opened
+ * (the only kind HttpURLConnection lets us see), so we can tell how
+ * much reuse we're getting.
+ *
+ * It also asks for gzip or deflate compression, and undoes it as the
+ * body is read, so callers never see it: feedme's HTML and the
+ * directory listings shrink several times over. Asking for it
+ * ourselves, rather than letting HttpURLConnection do it, means we
+ * get to count bytes on the wire as well as bytes of content.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+public class HttpSession {
+
+    int mConnectTimeout = 15000;   // milliseconds
+    int mReadTimeout = 10000;      // milliseconds
+
+    AtomicInteger mConnectionsOpened = new AtomicInteger(0);
+    AtomicInteger mRequests = new AtomicInteger(0);
+
+    // Body bytes as they came over the network, and after
+    // decompression; and how many responses were compressed.
+    AtomicLong mWireBytes = new AtomicLong(0);
+    AtomicLong mContentBytes = new AtomicLong(0);
+    AtomicInteger mCompressed = new AtomicInteger(0);
+
+    // Counts the TLS connections HttpURLConnection opens. It's the
+    // same factory for every request, since the pool only reuses
+    // a connection made by the factory asking for it.
+    SSLSocketFactory mSSLFactory = null;
+
+    // Bodies we're abandoning get read to the end so the connection
+    // can be reused, but only if there isn't too much left.
+    static final int MAX_DRAIN = 64 * 1024;
+
+    public HttpSession() {
+    }
+
+    public int connectionsOpened() {
+        return mConnectionsOpened.get();
+    }
+
+    public int requestsMade() {
+        return mRequests.get();
+    }
+
+    public long wireBytes() {
+        return mWireBytes.get();
+    }
+
+    public long contentBytes() {
+        return mContentBytes.get();
+    }
+
+    // Something suitable for the progress log.
+    public String stats() {
+        String conns = "";
+        if (mSSLFactory != null)
+            conns = " over " + connectionsOpened() + " HTTPS connections";
+        return requestsMade() + " requests" + conns + "; "
+            + FetchEngine.formatBytes(wireBytes()) + " on the wire for "
+            + FetchEngine.formatBytes(contentBytes()) + " of content ("
+            + mCompressed.get() + " responses compressed)";
+    }
+
+    // Nothing to do: HttpURLConnection closes idle connections itself.
+    public void close() {
+    }
+
+    /********** Requests ******/
+
+    public Response get(String urlstr) throws IOException {
+        return request("GET", urlstr, null, null);
+    }
+
+    public Response get(String urlstr, Map<String, String> headers)
+        throws IOException {
+        return request("GET", urlstr, headers, null);
+    }
+
+    // Make a request, following redirects, and return the response
+    // with its headers read and the body ready to read.
+    // The caller must close() the response.
+    // Error statuses are returned, not thrown; see checkStatus().
+    public Response request(String method, String urlstr,
+                            Map<String, String> headers, byte[] body)
+        throws IOException {
+        return request(method, urlstr, headers, body, mReadTimeout);
+    }
+
+    // The same, with a read timeout for just this request, e.g. for a
+    // long poll where the server may take a while to answer.
+    public Response request(String method, String urlstr,
+                            Map<String, String> headers, byte[] body,
+                            int readTimeout)
+        throws IOException {
+        URL url = new URL(urlstr);
+        mRequests.incrementAndGet();
+        HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+        if (conn instanceof HttpsURLConnection)
+            ((HttpsURLConnection)conn).setSSLSocketFactory(sslFactory());
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("User-Agent", "FeedViewer");
+        // Not with a Range, though: ranges count bytes of the
+        // compressed version, and what we'd be resuming is
+        // a partial file of the uncompressed one.
+        if (!hasHeader(headers, "Accept-Encoding")
+            && !hasHeader(headers, "Range"))
+            conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        if (headers != null)
+            for (Map.Entry<String, String> h : headers.entrySet())
+                conn.setRequestProperty(h.getKey(), h.getValue());
+        try {
+            if (body != null) {
+                // Streamed, not buffered, so HttpURLConnection can't
+                // quietly send it again if a pooled connection turns
+                // out to be dead: the server might have got a POST
+                // before the connection died, and running feedme
+                // twice is worse than reporting an error.
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(body.length);
+                OutputStream out = conn.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+            return new Response(conn, url);
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    private static Boolean hasHeader(Map<String, String> headers,
+                                     String name) {
+        if (headers == null)
+            return false;
+        for (String key : headers.keySet())
+            if (key.equalsIgnoreCase(name))
+                return true;
+        return false;
+    }
+
+    private synchronized SSLSocketFactory sslFactory() {
+        if (mSSLFactory == null)
+            mSSLFactory = new CountingSSLSocketFactory(
+                HttpsURLConnection.getDefaultSSLSocketFactory(),
+                mConnectionsOpened);
+        return mSSLFactory;
+    }
+
+    /********** Responses ******/
+
+    // An error status other than a 404, so whoever catches it
+    // can tell a server that's struggling (5xx) from one that's
+    // saying no (4xx).
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        int mStatus;
+
+        public StatusException(int status, URL url) {
+            super("HTTP response " + status + " for " + url);
+            mStatus = status;
+        }
+
+        public int status() {
+            return mStatus;
+        }
+    }
+
+    public class Response {
+        HttpURLConnection mConn;
+        URL mUrl;
+        int mStatus;
+        long mContentLength = -1;
+        // The body as it comes off the wire, counted.
+        InputStream mRawBody;
+        // gzip or deflate if we have to decompress it, else null.
+        String mEncoding = null;
+        InputStream mBody = null;
+        Boolean mClosed = false;
+
+        Response(HttpURLConnection conn, URL url) throws IOException {
+            mConn = conn;
+            mUrl = url;
+            mStatus = conn.getResponseCode();
+
+            // An error status's body is the error stream, which may
+            // be null if there isn't one; but it still has to be read
+            // and closed for the connection to be reused.
+            InputStream in = mStatus >= 400 ? conn.getErrorStream()
+                                            : conn.getInputStream();
+            if (in == null)
+                in = new ByteArrayInputStream(new byte[0]);
+            mRawBody = new CountingInputStream(in, mWireBytes);
+
+            String encoding = conn.getHeaderField("Content-Encoding");
+            if (encoding != null) {
+                encoding = encoding.trim().toLowerCase();
+                if (encoding.equals("gzip") || encoding.equals("x-gzip")
+                    || encoding.equals("deflate")) {
+                    mEncoding = encoding;
+                    mCompressed.incrementAndGet();
+                }
+            }
+            // getContentLengthLong() only came in with API 24.
+            String length = conn.getHeaderField("Content-Length");
+            if (length != null && mEncoding == null) {
+                try {
+                    mContentLength = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+
+        public int status() {
+            return mStatus;
+        }
+
+        public String header(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        // -1 if the server didn't say, or if it's compressed
+        // (since then we don't know how long it'll be).
+        public long contentLength() {
+            return mContentLength;
+        }
+
+        // The body, decompressed if need be.
+        public InputStream body() throws IOException {
+            if (mBody != null)
+                return mBody;
+            InputStream in = mRawBody;
+            if ("deflate".equals(mEncoding))
+                in = inflater(in);
+            else if (mEncoding != null)
+                in = new GZIPInputStream(in, 8192);
+            mBody = new CountingInputStream(in, mContentBytes);
+            return mBody;
+        }
+
+        // Throw the same exceptions HttpURLConnection would for
+        // an error status: FileNotFoundException for missing files,
+        // a StatusException (an IOException) for anything else that
+        // isn't a success.
+        public void checkStatus() throws IOException {
+            if (mStatus == 404 || mStatus == 410)
+                throw new FileNotFoundException(mUrl.toString());
+            if (mStatus >= 400 || mStatus < 200)
+                throw new StatusException(mStatus, mUrl);
+        }
+
+        // Finish with the response. If the body has been read (or
+        // there isn't much left), closing it lets HttpURLConnection
+        // put the connection back in its pool; otherwise it's
+        // disconnected, which is cheaper than reading it all.
+        public void close() {
+            if (mClosed)
+                return;
+            mClosed = true;
+            if (drain()) {
+                try {
+                    mRawBody.close();
+                } catch (IOException e) {
+                }
+            } else
+                mConn.disconnect();
+        }
+
+        private Boolean drain() {
+            try {
+                byte[] buf = new byte[4096];
+                long drained = 0;
+                int len;
+                while ((len = mRawBody.read(buf)) != -1) {
+                    drained += len;
+                    if (drained > MAX_DRAIN)
+                        return false;
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /********** Bodies ******/
+
+    // "deflate" is supposed to mean zlib format, but some servers
+    // send raw deflate data with no zlib header. Peek to see which.
+    static InputStream inflater(InputStream in) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in, 2);
+        bin.mark(2);
+        int b0 = bin.read();
+        int b1 = bin.read();
+        bin.reset();
+        Boolean zlib = b0 != -1 && b1 != -1 && (b0 & 0x0f) == 8
+            && ((b0 << 8) | b1) % 31 == 0;
+        return new InflaterInputStream(bin, new Inflater(!zlib), 8192);
+    }
+
+    // Counts bytes read into a total shared by the session.
+    static class CountingInputStream extends InputStream {
+        InputStream mIn;
+        AtomicLong mCount;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            mIn = in;
+            mCount = count;
+        }
+
+        public int read() throws IOException {
+            int c = mIn.read();
+            if (c != -1)
+                mCount.incrementAndGet();
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = mIn.read(b, off, len);
+            if (n > 0)
+                mCount.addAndGet(n);
+            return n;
+        }
+
+        public int available() throws IOException {
+            return mIn.available();
+        }
+
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /********** Connections ******/
+
+    // Passes everything on to the system's factory, counting each
+    // socket it makes: each one is a new connection, since a reused
+    // connection doesn't need another.
+    static class CountingSSLSocketFactory extends SSLSocketFactory {
+        SSLSocketFactory mFactory;
+        AtomicInteger mCount;
+
+        CountingSSLSocketFactory(SSLSocketFactory factory,
+                                 AtomicInteger count) {
+            mFactory = factory;
+            mCount = count;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return mFactory.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return mFactory.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket();
+        }
+
+        public Socket createSocket(Socket s, String host, int port,
+                                   boolean autoClose) throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket(s, host, port, autoClose);
+        }
+
+        public Socket createSocket(String host, int port)
+            throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket(host, port);
+        }
+
+        public Socket createSocket(String host, int port,
+                                   InetAddress localHost, int localPort)
+            throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket(host, port, localHost, localPort);
+        }
+
+        public Socket createSocket(InetAddress host, int port)
+            throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket(host, port);
+        }
+
+        public Socket createSocket(InetAddress address, int port,
+                                   InetAddress localAddress, int localPort)
+            throws IOException {
+            mCount.incrementAndGet();
+            return mFactory.createSocket(address, port,
+                                         localAddress, localPort);
+        }
+    }
+}
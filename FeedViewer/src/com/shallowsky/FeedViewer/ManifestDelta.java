@@ -0,0 +1,184 @@
+package com.shallowsky.FeedViewer;
+
+/**
+ * ManifestDelta: what's different about today's MANIFEST since
+ * the last time we fetched this day.
+ *
+ * After a fetch finishes, the manifest we applied is saved in the
+ * day directory as .manifest-applied, one "relpath<TAB>size<TAB>hash"
+ * per line. Next time, each entry of the new MANIFEST is compared
+ * against it as it streams in: if it's the same as before we already
+ * have it, without having to go look at the filesystem, so fetching
+ * the same day again costs hardly more than reading MANIFEST.
+ *
+ * An entry whose size or hash has changed counts as changed (if the
+ * manifest doesn't give sizes or hashes, nothing can be seen to change);
+ * entries from last time that are missing now are removed.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ManifestDelta {
+
+    static final String APPLIED_FILE = ".manifest-applied";
+
+    // What add() says about an entry.
+    static final int SEEN = -1;        // already added this time around
+    static final int UNCHANGED = 0;
+    static final int NEW = 1;
+    static final int CHANGED = 2;
+
+    File mFile;
+    Map<String, ManifestReader.Entry> mPrevious =
+        new HashMap<String, ManifestReader.Entry>();
+    // In the order MANIFEST listed them.
+    Map<String, ManifestReader.Entry> mCurrent =
+        new LinkedHashMap<String, ManifestReader.Entry>();
+
+    int mNumNew = 0;
+    int mNumChanged = 0;
+    // Bytes to download, as far as the sizes we know go,
+    // and how many new or changed files had no size given.
+    long mBytes = 0;
+    int mNumUnsized = 0;
+
+    public ManifestDelta(File datedir) {
+        mFile = new File(datedir, APPLIED_FILE);
+        if (!mFile.exists())
+            return;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.length() == 0)
+                    continue;
+                ManifestReader.Entry entry = ManifestReader.parse(line);
+                mPrevious.put(entry.mRelPath, entry);
+            }
+            br.close();
+        } catch (IOException e) {
+            // Then we'll just fetch whatever isn't here.
+            EngineLog.d("FeedFetcher", "Couldn't read " + mFile + ": " + e);
+            mPrevious.clear();
+        }
+    }
+
+    public Boolean isFirstFetch() {
+        return mPrevious.isEmpty();
+    }
+
+    // Note an entry from the new MANIFEST, and say how it compares.
+    // wanted says whether we'll download it if it's new or changed
+    // (we don't count images when we aren't fetching them).
+    public synchronized int add(ManifestReader.Entry entry,
+                                Boolean wanted) {
+        if (mCurrent.containsKey(entry.mRelPath))
+            return SEEN;
+        mCurrent.put(entry.mRelPath, entry);
+
+        ManifestReader.Entry old = mPrevious.get(entry.mRelPath);
+        int what;
+        if (old == null)
+            what = NEW;
+        else if (differ(old, entry))
+            what = CHANGED;
+        else
+            return UNCHANGED;
+
+        // Directories don't count as files to fetch.
+        if (!wanted || entry.mRelPath.endsWith("/"))
+            return what;
+        if (what == NEW)
+            ++mNumNew;
+        else
+            ++mNumChanged;
+        if (entry.mSize >= 0)
+            mBytes += entry.mSize;
+        else
+            ++mNumUnsized;
+        return what;
+    }
+
+    private static Boolean differ(ManifestReader.Entry a,
+                                  ManifestReader.Entry b) {
+        if (a.mSize >= 0 && b.mSize >= 0 && a.mSize != b.mSize)
+            return true;
+        if (a.mHash != null && b.mHash != null && !a.mHash.equals(b.mHash))
+            return true;
+        return false;
+    }
+
+    // The entry for relpath in the MANIFEST we're reading,
+    // or null if it isn't in it (or not yet).
+    public synchronized ManifestReader.Entry entry(String relpath) {
+        return mCurrent.get(relpath);
+    }
+
+    // Is there anything at all to download?
+    public synchronized Boolean hasChanges() {
+        return mNumNew + mNumChanged > 0;
+    }
+
+    // Entries we had last time that aren't in the new MANIFEST.
+    // Only meaningful once the whole MANIFEST has been read.
+    public synchronized List<String> removed() {
+        List<String> removed = new ArrayList<String>();
+        for (String relpath : mPrevious.keySet()) {
+            if (!mCurrent.containsKey(relpath))
+                removed.add(relpath);
+        }
+        return removed;
+    }
+
+    // e.g. "12 new files, 1 changed, 3 removed: 340 KB to fetch"
+    public synchronized String summary() {
+        String s;
+        if (isFirstFetch())
+            s = mNumNew + " files";
+        else
+            s = mNumNew + " new files, " + mNumChanged + " changed, "
+                + removed().size() + " removed";
+        if (!hasChanges())
+            return s + ": nothing to fetch";
+        if (mNumUnsized == mNumNew + mNumChanged)
+            return s + ", sizes unknown";
+        s += ": " + FetchEngine.formatBytes(mBytes) + " to fetch";
+        if (mNumUnsized > 0)
+            s += " plus " + mNumUnsized + " of unknown size";
+        return s;
+    }
+
+    // Remember the new MANIFEST as applied, except for the entries
+    // in skipped (ones we failed to get, or chose not to),
+    // so next time they'll look new and we'll try again.
+    public synchronized void save(Set<String> skipped) throws IOException {
+        File partial = new File(mFile.getPath() + FetchEngine.PARTIAL_SUFFIX);
+        PrintWriter pw = new PrintWriter(new FileWriter(partial));
+        try {
+            for (ManifestReader.Entry entry : mCurrent.values()) {
+                if (skipped.contains(entry.mRelPath))
+                    continue;
+                pw.print(entry.mRelPath + "\t" + entry.mSize + "\t"
+                         + (entry.mHash == null ? "" : entry.mHash) + "\n");
+            }
+        } finally {
+            pw.close();
+        }
+        if (pw.checkError())
+            throw new IOException("Couldn't write " + partial);
+        if (!partial.renameTo(mFile))
+            throw new IOException("Couldn't rename " + partial
+                                  + " to " + mFile);
+    }
+}
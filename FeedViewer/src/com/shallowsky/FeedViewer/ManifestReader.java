@@ -0,0 +1,133 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads a MANIFEST a line at a time as it comes in over the network,
+// handing each entry to a listener right away, so downloads can start
+// before the last byte arrives and we never hold the whole thing
+// in memory.
+//
+// Each line is a path relative to the day directory. A newer feedme
+// can add the file's size and SHA-256, separated by tabs:
+//   slashdot/img/logo.png<TAB>4711<TAB>9f86d08...
+// and older ones just don't, so both are optional.
+// The hash may instead be a CRC32, written as crc32:XXXXXXXX.
+public class ManifestReader {
+
+    // We sometimes get zero or partial manifests.
+    // So to make sure we've read the whole thing,
+    // look for the special string ".EOF."
+    // as the last line.
+    static final String EOF_MARKER = ".EOF.";
+
+    // Since Java doesn't allow passing callback functions:
+    public interface Listener {
+        void entry(Entry entry);
+    }
+
+    // One line of the manifest.
+    public static class Entry {
+        String mRelPath;
+        // -1 and null if the manifest didn't say.
+        long mSize = -1;
+        String mHash = null;
+
+        Entry(String relpath) {
+            mRelPath = relpath;
+        }
+    }
+
+    Listener mListener;
+    int mNumEntries = 0;
+    Boolean mSawEOF = false;
+
+    public ManifestReader(Listener listener) {
+        mListener = listener;
+    }
+
+    public int numEntries() {
+        return mNumEntries;
+    }
+
+    // Did the last non-blank line say .EOF.?
+    public Boolean complete() {
+        return mSawEOF;
+    }
+
+    // Read the manifest to the end of the stream.
+    // Returns true if it was complete.
+    // A partial manifest still has its entries passed on:
+    // every line in it is a file that exists, even if there
+    // are more to come. But only whole lines, ending in a newline:
+    // a manifest that's still being written can stop partway through
+    // a line, and "foo.html\t47" might really be "foo.html\t4711".
+    // The .EOF. marker is the exception, since it's never cut short.
+    public Boolean read(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        // The start of a line that didn't fit in the last buffer.
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        int len;
+        while ((len = in.read(buf)) != -1) {
+            int start = 0;
+            for (int i = 0; i < len; ++i) {
+                if (buf[i] != '\n')
+                    continue;
+                if (line.size() > 0) {
+                    line.write(buf, start, i - start);
+                    handleLine(line.toString("UTF-8"));
+                    line.reset();
+                } else
+                    handleLine(new String(buf, start, i - start, "UTF-8"));
+                start = i + 1;
+            }
+            line.write(buf, start, len - start);
+        }
+        // Whatever's left had no newline.
+        String rest = line.toString("UTF-8").trim();
+        if (rest.equals(EOF_MARKER))
+            mSawEOF = true;
+        else if (rest.length() > 0) {
+            EngineLog.d("ManifestReader",
+                        "Holding back partial line: " + rest);
+            mSawEOF = false;
+        }
+        return mSawEOF;
+    }
+
+    private void handleLine(String line) {
+        // Strip stray carriage returns. These should always be
+        // just \n, but why count on it?
+        line = line.trim();
+        if (line.length() == 0)
+            return;
+        if (line.equals(EOF_MARKER)) {
+            mSawEOF = true;
+            return;
+        }
+        // Anything after the marker means it wasn't the end after all.
+        mSawEOF = false;
+        ++mNumEntries;
+        mListener.entry(parse(line));
+    }
+
+    static Entry parse(String line) {
+        String[] fields = line.split("\t");
+        Entry entry = new Entry(fields[0]);
+        if (fields.length > 1) {
+            try {
+                entry.mSize = Long.parseLong(fields[1].trim());
+            } catch (NumberFormatException e) {
+                entry.mSize = -1;
+            }
+        }
+        if (fields.length > 2 && fields[2].trim().length() > 0) {
+            entry.mHash = fields[2].trim().toLowerCase();
+            // SHA-256 is the default; CRC32s keep their prefix.
+            if (entry.mHash.startsWith("sha256:"))
+                entry.mHash = entry.mHash.substring(7);
+        }
+        return entry;
+    }
+}
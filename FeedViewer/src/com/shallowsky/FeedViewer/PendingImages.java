@@ -0,0 +1,84 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Images we skipped on a metered connection, to be fetched next time
+// we're on an unmetered one. Kept in LOCALDIR/.pending-images,
+// one "day/relpath<TAB>url" per line, e.g.
+//   10-18-Sun/slashdot/img/photo.jpg<TAB>http://server/feeds/...
+public class PendingImages {
+
+    static final String PENDING_FILE = ".pending-images";
+
+    File mFile;
+    // path -> url, in the order they were added.
+    Map<String, String> mPending = new LinkedHashMap<String, String>();
+
+    public PendingImages(File localdir) {
+        mFile = new File(localdir, PENDING_FILE);
+        if (!mFile.exists())
+            return;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = br.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    mPending.put(line.substring(0, tab),
+                                 line.substring(tab + 1));
+            }
+            br.close();
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't read " + mFile + ": " + e);
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    // A copy, so the caller can go through it while we change.
+    public synchronized Map<String, String> entries() {
+        return new LinkedHashMap<String, String>(mPending);
+    }
+
+    public synchronized void add(String path, String url) {
+        if (mPending.containsKey(path))
+            return;
+        mPending.put(path, url);
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(mFile, true));
+            pw.print(path + "\t" + url + "\n");
+            pw.close();
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't add to " + mFile + ": " + e);
+        }
+    }
+
+    public synchronized void remove(String path) {
+        if (mPending.remove(path) != null)
+            save();
+    }
+
+    private void save() {
+        if (mPending.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+        try {
+            PrintWriter pw = new PrintWriter(new FileWriter(mFile));
+            for (Map.Entry<String, String> e : mPending.entrySet())
+                pw.print(e.getKey() + "\t" + e.getValue() + "\n");
+            pw.close();
+        } catch (IOException e) {
+            EngineLog.d("FeedFetcher", "Couldn't write " + mFile + ": " + e);
+        }
+    }
+}
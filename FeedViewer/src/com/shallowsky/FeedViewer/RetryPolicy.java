@@ -0,0 +1,148 @@
+package com.shallowsky.FeedViewer;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+// Decides what to do about a download that failed: try it again
+// (and when), save it for one last try at the end, or give up on it.
+// Also keeps an eye on whether anything is working at all, so the
+// fetch as a whole only gives up when the network really seems to
+// be gone, not because of one bad minute or one bad file.
+//
+// Failed files are retried after an exponential backoff of their own,
+// and behind everything that hasn't been tried yet (see
+// DownloadJob.compareTo). Files that use up their tries get one more
+// chance in a final pass once everything else is done.
+public class RetryPolicy {
+
+    // What went wrong, as far as retrying is concerned.
+    static final int NOT_FOUND = 0;     // 404 or 410: it isn't there
+    static final int REFUSED = 1;       // other 4xx: asking again won't help
+    static final int SERVER = 2;        // 5xx, 408, 429: try again later
+    static final int TIMEOUT = 3;
+    static final int NETWORK = 4;       // connection reset, refused, etc.
+    static final int CHECKSUM = 5;      // arrived, but not right
+    static final String[] KIND_NAMES = {
+        "not found", "refused", "server error", "timeout",
+        "network error", "bad checksum"
+    };
+
+    // Tries per file, by DownloadJob priority class, before it's left
+    // for the final pass. We try hardest for the pages we read.
+    int[] mMaxAttempts = { 5, 5, 4, 3, 3 };
+
+    long mBaseDelay = 1000;       // milliseconds
+    long mMaxDelay = 60000;
+    double mJitter = 0.25;
+    Random mRandom = new Random();
+
+    // When this many fail in a row for network reasons, everyone
+    // waits a while before the next retry rather than piling on.
+    int mPauseAfter = 3;
+    int mSuccessiveFailures = 0;
+    long mPausedUntil = 0;
+
+    // Give up on the whole fetch if nothing has downloaded in this long,
+    // despite trying.
+    long mGiveUpAfter = 3 * 60 * 1000;
+    long mLastSuccess;
+    int mFailuresSinceSuccess = 0;
+
+    // The engine's, so a test can run the backoff without waiting.
+    FetchEngine.Clock mClock;
+
+    public RetryPolicy(FetchEngine.Clock clock) {
+        mClock = clock;
+        mLastSuccess = mClock.now();
+    }
+
+    public void setMaxAttempts(int priority, int attempts) {
+        mMaxAttempts[priority] = Math.max(1, attempts);
+    }
+
+    public void setDelays(long base, long max) {
+        mBaseDelay = base;
+        mMaxDelay = Math.max(base, max);
+    }
+
+    public void setGiveUpAfter(long millis) {
+        mGiveUpAfter = millis;
+    }
+
+    static int classify(IOException e) {
+        if (e instanceof FileNotFoundException)
+            return NOT_FOUND;
+        if (e instanceof FileVerifier.ChecksumException)
+            return CHECKSUM;
+        if (e instanceof SocketTimeoutException)
+            return TIMEOUT;
+        if (e instanceof HttpSession.StatusException) {
+            int status = ((HttpSession.StatusException)e).status();
+            if (status >= 500 || status == 408 || status == 429)
+                return SERVER;
+            return REFUSED;
+        }
+        return NETWORK;
+    }
+
+    static Boolean retryable(int kind) {
+        return kind != NOT_FOUND && kind != REFUSED;
+    }
+
+    // Does this failure say something about the network as a whole?
+    // A bad checksum or a missing file doesn't.
+    static Boolean networkTrouble(int kind) {
+        return kind == TIMEOUT || kind == NETWORK || kind == SERVER;
+    }
+
+    public synchronized void succeeded() {
+        mSuccessiveFailures = 0;
+        mFailuresSinceSuccess = 0;
+        mLastSuccess = mClock.now();
+    }
+
+    public synchronized void failed(int kind) {
+        if (!networkTrouble(kind))
+            return;
+        ++mFailuresSinceSuccess;
+        if (++mSuccessiveFailures >= mPauseAfter) {
+            // Wait longer the longer it's been going on.
+            mPausedUntil = mClock.now()
+                + delay(mSuccessiveFailures - mPauseAfter + 1);
+        }
+    }
+
+    // Has it been so long since anything worked that we should stop?
+    public synchronized Boolean hopeless() {
+        return mFailuresSinceSuccess > 0
+            && mClock.now() - mLastSuccess > mGiveUpAfter;
+    }
+
+    public synchronized long pausedUntil() {
+        return mPausedUntil;
+    }
+
+    // Should job, which just failed with kind, get another try
+    // before the final pass?
+    public Boolean shouldRetry(DownloadJob job, int kind) {
+        return retryable(kind) && job.mAttempts < mMaxAttempts[job.mPriority];
+    }
+
+    // When job can next be tried, counting from now.
+    public synchronized long nextTry(DownloadJob job) {
+        return Math.max(mClock.now() + delay(job.mAttempts),
+                        mPausedUntil);
+    }
+
+    // base * 2^(n-1), capped, give or take the jitter.
+    private long delay(int n) {
+        long d = mBaseDelay;
+        for (int i = 1; i < n && d < mMaxDelay; ++i)
+            d *= 2;
+        d = Math.min(d, mMaxDelay);
+        double jitter = 1.0 + mJitter * (2 * mRandom.nextDouble() - 1);
+        return (long)(d * jitter);
+    }
+}
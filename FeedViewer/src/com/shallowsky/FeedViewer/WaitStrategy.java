@@ -0,0 +1,14 @@
+package com.shallowsky.FeedViewer;
+
+// Decides how long to sleep between checks while we wait for feedme
+// to finish, so FeedFetcher can be given a different policy without
+// touching its polling loop.
+public interface WaitStrategy {
+    // Called when we start waiting.
+    void start();
+
+    // How long to sleep, in milliseconds, before the next check.
+    // elapsed is how long we've been waiting so far;
+    // progress says whether the last check showed anything new.
+    long nextDelay(long elapsed, Boolean progress);
+}
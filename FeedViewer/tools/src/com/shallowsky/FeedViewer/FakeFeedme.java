@@ -0,0 +1,757 @@
+package com.shallowsky.FeedViewer;
+
+// FakeFeedme: a stand-in for a feedme server, running in the same JVM,
+// so the fetch can be measured (and tried out) without a real server
+// and a day's worth of real feeds.
+//
+// It answers like the real thing, as far as FetchEngine can tell:
+//   /feedme/urlrss.cgi?xtraurls=...   starts "feedme" on today's day
+//                                     (xtraurls can be POSTed too,
+//                                     and then it says how many)
+//   /feeds/                           Apache-style listing of the days
+//   /feeds/MM-dd-EEE/                 listing of the feeds so far
+//   /feeds/MM-dd-EEE/feedN/...        the feeds' files, and listings
+//   /feeds/MM-dd-EEE/MANIFEST         once feedme is done
+//   /feeds/MM-dd-EEE.tar.gz, .zip     the whole day in one, likewise
+// Listings and MANIFEST have ETags, so conditional GETs get 304s;
+// files take Range requests, and text can be gzipped.
+//
+// Nothing is on disk: each day is a list of made-up files, with sizes
+// drawn from a log-normal distribution (most files smallish, a few
+// big), and contents generated from a seed whenever they're asked
+// for. Text is repetitive, so it compresses like HTML does; images
+// are random bytes, so they don't. The same seed gives the same day.
+//
+// "Running feedme" takes mFeedmeTime: the feed directories show up one
+// at a time over that long, then MANIFEST appears and grows over
+// mManifestTime until its .EOF. line is there. Latency, bandwidth and
+// a rate of 503 errors can be set too, and a rate of files that come
+// out wrong in bundles, to try out the checking.
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FakeFeedme {
+
+    // What a day looks like.
+    int mNumFeeds = 10;
+    int mFilesPerDay = 100;
+    double mImageFraction = 0.5;
+    int mTextSize = 8 * 1024;         // median, bytes
+    int mImageSize = 24 * 1024;
+    double mSizeSpread = 1.0;         // sigma of the log of the size
+    Boolean mChecksums = true;        // sizes and SHA-256 in MANIFEST
+    long mSeed = 1;
+
+    // How feedme and the network behave.
+    long mFeedmeTime = 10000;         // milliseconds
+    long mManifestTime = 1000;
+    long mLatency = 0;                // added to every response
+    long mBandwidth = 0;              // bytes/sec per connection; 0: any
+    double mErrorRate = 0;            // fraction of files that get a 503
+    Boolean mCompress = true;         // gzip text if asked
+    Boolean mAcceptPost = true;       // false: an old urlrss.cgi
+    Boolean mIgnorePost = false;      // an older one that reads a POST
+                                      // like a GET with no query
+    Boolean mBundles = true;          // serve DAY.tar.gz and DAY.zip
+    double mBundleErrorRate = 0;      // fraction of files bundled wrong
+
+    HttpServer mServer;
+    ExecutorService mThreads;
+    Random mRandom;
+
+    // Days by name, e.g. "10-18-Sun".
+    Map<String, Day> mDays = new LinkedHashMap<String, Day>();
+
+    // The xtraurls urlrss.cgi has been given.
+    List<String> mSavedURLs = new ArrayList<String>();
+
+    // What we've served.
+    AtomicInteger mRequests = new AtomicInteger(0);
+    // Each connection has its own client address and port, so this
+    // counts connections: HttpURLConnection won't tell us itself.
+    Set<InetSocketAddress> mClients = new HashSet<InetSocketAddress>();
+    AtomicInteger mErrors = new AtomicInteger(0);
+    AtomicLong mBytesSent = new AtomicLong(0);
+
+    // mod_autoindex's default NameWidth.
+    static final int NAME_WIDTH = 23;
+
+    static final String TEXT =
+        "<p>It was a dark and stormy night; the rain fell in torrents"
+        + " -- except at occasional intervals, when it was checked by"
+        + " a violent gust of wind which swept up the streets.</p>\n";
+
+    // One made-up file.
+    static class FakeFile {
+        String mRelPath;
+        int mSize;
+        long mSeed;
+        String mHash = null;
+
+        FakeFile(String relpath, int size, long seed) {
+            mRelPath = relpath;
+            mSize = size;
+            mSeed = seed;
+        }
+    }
+
+    // One day's feeds, and when feedme started on it
+    // (0 if it was done before we started).
+    class Day {
+        String mName;
+        long mStarted = -1;
+        List<List<FakeFile>> mFeeds = new ArrayList<List<FakeFile>>();
+        // The same files by path, since every request looks one up:
+        // a scan each time would make serving a big day O(n^2),
+        // which would end up in the numbers we're here to measure.
+        Map<String, FakeFile> mFiles = new HashMap<String, FakeFile>();
+        byte[] mManifest = null;
+
+        Day(String name) {
+            mName = name;
+        }
+
+        Boolean started() {
+            return mStarted >= 0;
+        }
+
+        // How many feed directories are there by now.
+        int feedsVisible(long now) {
+            if (mStarted < 0)
+                return 0;
+            if (mFeedmeTime <= 0)
+                return mFeeds.size();
+            long per = mFeedmeTime / mFeeds.size();
+            return (int)Math.min(mFeeds.size(),
+                                 (now - mStarted) / Math.max(1, per) + 1);
+        }
+
+        // How much of MANIFEST has been written, or -1 if none yet.
+        int manifestBytes(long now) {
+            if (mStarted < 0)
+                return -1;
+            long since = now - mStarted - mFeedmeTime;
+            if (since < 0)
+                return -1;
+            byte[] manifest = manifest();
+            if (since >= mManifestTime)
+                return manifest.length;
+            // Not necessarily whole lines: feedme's writes get flushed
+            // a buffer at a time, so a reader can see half a line.
+            // But never the .EOF. line until the end.
+            int n = (int)(manifest.length * since / mManifestTime);
+            return Math.min(n, manifest.length - 6);
+        }
+
+        synchronized byte[] manifest() {
+            if (mManifest != null)
+                return mManifest;
+            StringBuilder sb = new StringBuilder();
+            for (List<FakeFile> feed : mFeeds) {
+                for (FakeFile f : feed) {
+                    sb.append(f.mRelPath);
+                    if (mChecksums)
+                        sb.append('\t').append(f.mSize)
+                            .append('\t').append(hash(f));
+                    sb.append('\n');
+                }
+            }
+            sb.append(ManifestReader.EOF_MARKER).append('\n');
+            mManifest = bytes(sb.toString());
+            return mManifest;
+        }
+
+        FakeFile find(String relpath) {
+            return mFiles.get(relpath);
+        }
+    }
+
+    // Every third feed gets a name too long for a listing to show
+    // whole, as real feeds' names often are.
+    static String feedName(int i) {
+        if (i % 3 == 2)
+            return "feed" + i + "-with-a-rather-long-name/";
+        return "feed" + i + "/";
+    }
+
+    // Make up a day's feeds, not started yet.
+    Day makeDay(String name) {
+        Day day = new Day(name);
+        Random random = new Random(mSeed ^ name.hashCode());
+        int perFeed = Math.max(1, mFilesPerDay / mNumFeeds);
+        int made = 0;
+        for (int i = 0; i < mNumFeeds && made < mFilesPerDay; ++i) {
+            List<FakeFile> feed = new ArrayList<FakeFile>();
+            String dir = feedName(i);
+            // The last feed gets whatever's left over.
+            int n = (i == mNumFeeds - 1) ? mFilesPerDay - made : perFeed;
+            for (int j = 0; j < n; ++j) {
+                String relpath;
+                int median;
+                if (j == 0) {
+                    relpath = dir + "index.html";
+                    median = mTextSize;
+                } else if (random.nextDouble() < mImageFraction) {
+                    relpath = dir + "img/" + j + ".jpg";
+                    median = mImageSize;
+                } else {
+                    relpath = dir + j + ".html";
+                    median = mTextSize;
+                }
+                double size = median
+                    * Math.exp(mSizeSpread * random.nextGaussian());
+                size = Math.max(100, Math.min(size, 50.0 * median));
+                FakeFile f = new FakeFile(relpath, (int)size,
+                                          random.nextLong());
+                feed.add(f);
+                day.mFiles.put(relpath, f);
+            }
+            made += n;
+            day.mFeeds.add(feed);
+        }
+        mDays.put(name, day);
+        return day;
+    }
+
+    // A day that feedme already finished before we started,
+    // e.g. for catching up on days we missed.
+    public void addFinishedDay(String name) {
+        makeDay(name).mStarted = 0;
+    }
+
+    public static String today() {
+        return new SimpleDateFormat("MM-dd-EEE").format(new Date());
+    }
+
+    // Start serving on port (0 for any free one).
+    public void start(int port) throws IOException {
+        mRandom = new Random(mSeed);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1",
+                                                          port), 0);
+        mThreads = Executors.newFixedThreadPool(32);
+        mServer.setExecutor(mThreads);
+        mServer.createContext("/", new HttpHandler() {
+                public void handle(HttpExchange ex) throws IOException {
+                    try {
+                        serve(ex);
+                    } catch (IOException e) {
+                        // The client hung up: no matter.
+                    } finally {
+                        ex.close();
+                    }
+                }
+            });
+        mServer.start();
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mThreads.shutdownNow();
+    }
+
+    public int requests() {
+        return mRequests.get();
+    }
+
+    public synchronized int connections() {
+        return mClients.size();
+    }
+
+    public int errors() {
+        return mErrors.get();
+    }
+
+    public synchronized List<String> savedURLs() {
+        return new ArrayList<String>(mSavedURLs);
+    }
+
+    public long bytesSent() {
+        return mBytesSent.get();
+    }
+
+    void serve(HttpExchange ex) throws IOException {
+        mRequests.incrementAndGet();
+        synchronized (this) {
+            mClients.add(ex.getRemoteAddress());
+        }
+        // Read any request body, and say we're done with it: otherwise
+        // the JDK's server drops the connection after any response
+        // without a body, like a 304.
+        ByteArrayOutputStream posted = new ByteArrayOutputStream();
+        InputStream in = ex.getRequestBody();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            posted.write(buf, 0, n);
+        in.close();
+        if (mLatency > 0)
+            sleep(mLatency);
+
+        String path = URLDecoder.decode(ex.getRequestURI().getRawPath(),
+                                        "UTF-8");
+        long now = System.currentTimeMillis();
+
+        if (path.equals("/feedme/urlrss.cgi")) {
+            String query = ex.getRequestURI().getRawQuery();
+            if (ex.getRequestMethod().equals("POST")) {
+                if (!mAcceptPost) {
+                    send(ex, 405, null, null, false);
+                    return;
+                }
+                if (mIgnorePost) {
+                    send(ex, 200, bytes("<html>urlrss</html>\n"),
+                         "text/html", false);
+                    return;
+                }
+                query = new String(posted.toByteArray(), "UTF-8");
+            }
+            if (query == null || !query.startsWith("xtraurls=")) {
+                send(ex, 400, null, null, false);
+                return;
+            }
+            String xtra = URLDecoder.decode(query.substring(9), "UTF-8");
+            int received = 0;
+            synchronized (this) {
+                if (!xtra.equals("none"))
+                    for (String url : xtra.split("\n")) {
+                        mSavedURLs.add(url);
+                        ++received;
+                    }
+            }
+            runFeedme(now);
+            // Saying how many it got is how FetchEngine knows
+            // a POST worked.
+            String said = "Running feedme\n";
+            if (ex.getRequestMethod().equals("POST"))
+                said = "Received " + received + " URLs\n" + said;
+            send(ex, 200, bytes(said), "text/plain", false);
+            return;
+        }
+        if (path.equals("/feeds/")) {
+            List<String> names = new ArrayList<String>();
+            synchronized (this) {
+                for (Day day : mDays.values())
+                    if (day.started())
+                        names.add(day.mName + "/");
+            }
+            sendListing(ex, "/", names);
+            return;
+        }
+        if (!path.startsWith("/feeds/")) {
+            send(ex, 404, null, null, false);
+            return;
+        }
+
+        // /feeds/DAY/rest
+        String rest = path.substring(7);
+        int slash = rest.indexOf('/');
+        if (slash < 0
+            && (rest.endsWith(".tar.gz") || rest.endsWith(".zip"))) {
+            Boolean zip = rest.endsWith(".zip");
+            Day day;
+            synchronized (this) {
+                day = mDays.get(rest.substring(0, rest.lastIndexOf(
+                                                   zip ? ".zip" : ".tar.gz")));
+            }
+            // Like MANIFEST, only once feedme has finished.
+            if (!mBundles || day == null
+                || day.manifestBytes(now) < day.manifest().length) {
+                send(ex, 404, null, null, false);
+                return;
+            }
+            sendBundle(ex, day, zip);
+            return;
+        }
+        Day day;
+        synchronized (this) {
+            day = (slash < 0) ? null : mDays.get(rest.substring(0, slash));
+        }
+        if (day == null || !day.started()) {
+            send(ex, 404, null, null, false);
+            return;
+        }
+        String relpath = rest.substring(slash + 1);
+
+        if (relpath.equals("MANIFEST")) {
+            int len = day.manifestBytes(now);
+            if (len < 0) {
+                send(ex, 404, null, null, false);
+                return;
+            }
+            byte[] manifest = new byte[len];
+            System.arraycopy(day.manifest(), 0, manifest, 0, len);
+            sendWithETag(ex, manifest, "text/plain");
+            return;
+        }
+
+        int visible = day.feedsVisible(now);
+        if (relpath.length() == 0) {
+            List<String> names = new ArrayList<String>();
+            for (int i = 0; i < visible; ++i)
+                names.add(feedName(i));
+            if (day.manifestBytes(now) >= 0)
+                names.add("MANIFEST");
+            sendListing(ex, "/feeds/", names);
+            return;
+        }
+
+        // Which feed is it in, and is that there yet?
+        int feed = -1;
+        if (relpath.startsWith("feed")) {
+            int end = 4;
+            while (end < relpath.length()
+                   && Character.isDigit(relpath.charAt(end)))
+                ++end;
+            try {
+                feed = Integer.parseInt(relpath.substring(4, end));
+            } catch (RuntimeException e) {
+            }
+            if (feed >= 0 && feed < day.mFeeds.size()
+                && !relpath.startsWith(feedName(feed)))
+                feed = -1;
+        }
+        if (feed < 0 || feed >= visible) {
+            send(ex, 404, null, null, false);
+            return;
+        }
+
+        if (relpath.endsWith("/")) {
+            // A feed directory or its img/: what's directly in it.
+            TreeSet<String> names = new TreeSet<String>();
+            for (FakeFile f : day.mFeeds.get(feed)) {
+                if (!f.mRelPath.startsWith(relpath))
+                    continue;
+                String name = f.mRelPath.substring(relpath.length());
+                int sub = name.indexOf('/');
+                names.add(sub < 0 ? name : name.substring(0, sub + 1));
+            }
+            if (names.isEmpty()) {
+                send(ex, 404, null, null, false);
+                return;
+            }
+            sendListing(ex, "/feeds/" + day.mName + "/",
+                        new ArrayList<String>(names));
+            return;
+        }
+
+        FakeFile f = day.find(relpath);
+        if (f == null) {
+            send(ex, 404, null, null, false);
+            return;
+        }
+        Boolean fail;
+        synchronized (this) {
+            fail = mRandom.nextDouble() < mErrorRate;
+        }
+        if (fail) {
+            mErrors.incrementAndGet();
+            send(ex, 503, null, null, false);
+            return;
+        }
+        sendFile(ex, f);
+    }
+
+    // Start feedme on today, unless it's already going.
+    synchronized void runFeedme(long now) {
+        String name = today();
+        Day day = mDays.get(name);
+        if (day == null)
+            day = makeDay(name);
+        if (!day.started())
+            day.mStarted = now;
+    }
+
+    void sendFile(HttpExchange ex, FakeFile f) throws IOException {
+        byte[] content = content(f);
+        Boolean image = FetchEngine.isImage(f.mRelPath);
+        String type = image ? "image/jpeg" : "text/html";
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range == null || !range.startsWith("bytes=")) {
+            send(ex, 200, content, type, !image);
+            return;
+        }
+        long start;
+        try {
+            start = Long.parseLong(range.substring(6, range.indexOf('-')));
+        } catch (RuntimeException e) {
+            send(ex, 200, content, type, !image);
+            return;
+        }
+        if (start >= content.length) {
+            send(ex, 416, null, null, false);
+            return;
+        }
+        byte[] part = new byte[content.length - (int)start];
+        System.arraycopy(content, (int)start, part, 0, part.length);
+        ex.getResponseHeaders().add("Content-Range", "bytes " + start + "-"
+                                    + (content.length - 1) + "/"
+                                    + content.length);
+        send(ex, 206, part, type, false);
+    }
+
+    // The whole day as one archive, with the day as its top directory,
+    // made up as it goes out rather than all at once.
+    void sendBundle(HttpExchange ex, Day day, Boolean zip)
+        throws IOException {
+        ex.getResponseHeaders().add("Content-Type", zip ? "application/zip"
+                                    : "application/gzip");
+        // Chunked, since we don't know how long it'll be.
+        ex.sendResponseHeaders(200, 0);
+        OutputStream out = new Meter(ex.getResponseBody());
+        if (zip) {
+            ZipOutputStream zout = new ZipOutputStream(out);
+            for (List<FakeFile> feed : day.mFeeds) {
+                for (FakeFile f : feed) {
+                    zout.putNextEntry(new ZipEntry(day.mName + "/"
+                                                   + f.mRelPath));
+                    zout.write(bundled(f));
+                    zout.closeEntry();
+                }
+            }
+            zout.close();
+            return;
+        }
+        GZIPOutputStream gz = new GZIPOutputStream(out, 8192);
+        for (List<FakeFile> feed : day.mFeeds) {
+            for (FakeFile f : feed) {
+                byte[] content = bundled(f);
+                gz.write(tarHeader(day.mName + "/" + f.mRelPath,
+                                   content.length));
+                gz.write(content);
+                gz.write(new byte[(512 - content.length % 512) % 512]);
+            }
+        }
+        // Two empty blocks to end it.
+        gz.write(new byte[1024]);
+        gz.close();
+    }
+
+    // A file's content as it goes in a bundle: wrong now and then,
+    // if mBundleErrorRate says so.
+    byte[] bundled(FakeFile f) {
+        byte[] content = content(f);
+        Boolean bad;
+        synchronized (this) {
+            bad = mRandom.nextDouble() < mBundleErrorRate;
+        }
+        if (bad && content.length > 0) {
+            mErrors.incrementAndGet();
+            content[content.length / 2] ^= 0x55;
+        }
+        return content;
+    }
+
+    // A ustar header for a plain file. Our names are all well under
+    // the 100 characters that fit without the prefix field.
+    static byte[] tarHeader(String name, long size) {
+        byte[] h = new byte[512];
+        byte[] n = bytes(name);
+        System.arraycopy(n, 0, h, 0, Math.min(n.length, 100));
+        tarOctal(h, 100, 8, 0644);                          // mode
+        tarOctal(h, 108, 8, 0);                             // uid
+        tarOctal(h, 116, 8, 0);                             // gid
+        tarOctal(h, 124, 12, size);
+        tarOctal(h, 136, 12, System.currentTimeMillis() / 1000);
+        h[156] = '0';                                       // a file
+        System.arraycopy(bytes("ustar\0" + "00"), 0, h, 257, 8);
+        // The checksum is figured with its own field as spaces.
+        Arrays.fill(h, 148, 156, (byte)' ');
+        long sum = 0;
+        for (byte b : h)
+            sum += b & 0xff;
+        tarOctal(h, 148, 7, sum);
+        return h;
+    }
+
+    // len - 1 octal digits and a NUL.
+    static void tarOctal(byte[] h, int off, int len, long val) {
+        StringBuilder sb = new StringBuilder(Long.toOctalString(val));
+        while (sb.length() < len - 1)
+            sb.insert(0, '0');
+        System.arraycopy(bytes(sb.toString()), 0, h, off, len - 1);
+        h[off + len - 1] = 0;
+    }
+
+    // Counts what goes out, and holds it to mBandwidth, for responses
+    // written as they're made rather than from one array.
+    class Meter extends FilterOutputStream {
+        Meter(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mBytesSent.addAndGet(len);
+            if (mBandwidth > 0) {
+                out.flush();
+                sleep(len * 1000L / mBandwidth);
+            }
+        }
+    }
+
+    // Listings and MANIFEST change as feedme runs, so they get
+    // ETags, and a 304 if the client has already seen this one.
+    void sendWithETag(HttpExchange ex, byte[] body, String type)
+        throws IOException {
+        String etag = "\"" + body.length + "-"
+            + Integer.toHexString(java.util.Arrays.hashCode(body)) + "\"";
+        ex.getResponseHeaders().add("ETag", etag);
+        if (etag.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+            send(ex, 304, null, null, false);
+            return;
+        }
+        send(ex, 200, body, type, true);
+    }
+
+    // What Apache's mod_autoindex sends, near enough: the column
+    // headings, Parent Directory, then the entries, which is what
+    // DirListing looks for. Like Apache, it cuts names longer than
+    // NAME_WIDTH short in the link text, but not in the href.
+    void sendListing(HttpExchange ex, String parent, List<String> names)
+        throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 3.2 Final//EN\">\n"
+                  + "<html><head><title>Index</title></head><body>\n"
+                  + "<h1>Index</h1><pre>"
+                  + "<a href=\"?C=N;O=D\">Name</a>"
+                  + " <a href=\"?C=M;O=A\">Last modified</a>"
+                  + " <a href=\"?C=S;O=A\">Size</a><hr>"
+                  + "<a href=\"" + parent + "\">Parent Directory</a>\n");
+        for (String name : names) {
+            String text = name;
+            if (text.length() > NAME_WIDTH)
+                text = text.substring(0, NAME_WIDTH - 3) + "..&gt;";
+            sb.append("<a href=\"").append(encode(name)).append("\">")
+                .append(text).append("</a>\n");
+        }
+        sb.append("<hr></pre></body></html>\n");
+        sendWithETag(ex, bytes(sb.toString()), "text/html");
+    }
+
+    void send(HttpExchange ex, int status, byte[] body, String type,
+              Boolean compressible) throws IOException {
+        if (body == null) {
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (mCompress && compressible && accept != null
+            && accept.contains("gzip")) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gz = new GZIPOutputStream(bos);
+            gz.write(body);
+            gz.close();
+            body = bos.toByteArray();
+            ex.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        if (type != null)
+            ex.getResponseHeaders().add("Content-Type", type);
+        ex.sendResponseHeaders(status, body.length);
+        OutputStream out = ex.getResponseBody();
+        if (mBandwidth <= 0) {
+            out.write(body);
+        } else {
+            // A chunk at a time, as fast as the "link" allows.
+            int chunk = (int)Math.max(1024, Math.min(mBandwidth / 10,
+                                                     64 * 1024));
+            for (int off = 0; off < body.length; off += chunk) {
+                int n = Math.min(chunk, body.length - off);
+                out.write(body, off, n);
+                out.flush();
+                sleep(n * 1000L / mBandwidth);
+            }
+        }
+        mBytesSent.addAndGet(body.length);
+    }
+
+    // The same bytes every time for the same file.
+    byte[] content(FakeFile f) {
+        byte[] b = new byte[f.mSize];
+        if (FetchEngine.isImage(f.mRelPath)) {
+            new Random(f.mSeed).nextBytes(b);
+            return b;
+        }
+        byte[] text = bytes(TEXT);
+        int off = (int)((f.mSeed & 0x7fffffff) % text.length);
+        for (int i = 0; i < b.length; ++i)
+            b[i] = text[(off + i) % text.length];
+        return b;
+    }
+
+    String hash(FakeFile f) {
+        if (f.mHash != null)
+            return f.mHash;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            f.mHash = BlobStore.hex(md.digest(content(f)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        return f.mHash;
+    }
+
+    static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String encode(String name) throws UnsupportedEncodingException {
+        // Keep the trailing slash on directories.
+        if (name.endsWith("/"))
+            return URLEncoder.encode(name.substring(0, name.length() - 1),
+                                     "UTF-8") + "/";
+        return URLEncoder.encode(name, "UTF-8");
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
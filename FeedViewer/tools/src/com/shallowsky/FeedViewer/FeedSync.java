@@ -0,0 +1,129 @@
+package com.shallowsky.FeedViewer;
+
+// FeedSync: fetch today's feeds from the command line, with the same
+// FetchEngine the app uses, into a local directory -- say, to read
+// on a laptop, or to try out fetch settings without a phone.
+// With -catchup it also fetches any days missed since the last fetch
+// that finished.
+//
+// FetchEngine and everything it uses is plain Java, so this builds
+// from the app's sources with no Android SDK:
+//   cd FeedViewer
+//   mkdir -p bin/tools
+//   javac -d bin/tools -sourcepath src \
+//       tools/src/com/shallowsky/FeedViewer/FeedSync.java
+//   java -cp bin/tools com.shallowsky.FeedViewer.FeedSync \
+//       http://example.com ~/feeds
+//
+// Options, before the server URL:
+//   -v             print the engine's debugging messages too
+//   -noimages      don't fetch images
+//   -pipelined     fetch feeds while feedme is still running
+//   -catchup       also fetch days missed since the last fetch
+//                  that finished
+//   -bundle        try for the whole day as one archive
+//   -metered       act as if on a metered network
+//   -budget N      download at most N bytes when metered
+//   -rate N        at most N bytes per second when metered
+//   -maximage N    leave images over N bytes for later when metered
+
+import java.io.File;
+
+public class FeedSync {
+
+    public static void main(String[] args) {
+        // The server and directory come after the options,
+        // so gather the options up first.
+        Boolean verbose = false, images = true, pipelined = false;
+        Boolean bundle = false, metered = false, catchup = false;
+        long budget = -1, rate = 0, maxImage = -1;
+        int i = 0;
+        try {
+            for ( ; i < args.length && args[i].startsWith("-"); ++i) {
+                String arg = args[i];
+                if (arg.equals("-v"))
+                    verbose = true;
+                else if (arg.equals("-noimages"))
+                    images = false;
+                else if (arg.equals("-pipelined"))
+                    pipelined = true;
+                else if (arg.equals("-catchup"))
+                    catchup = true;
+                else if (arg.equals("-bundle"))
+                    bundle = true;
+                else if (arg.equals("-metered"))
+                    metered = true;
+                else if (arg.equals("-budget"))
+                    budget = Long.parseLong(args[++i]);
+                else if (arg.equals("-rate"))
+                    rate = Long.parseLong(args[++i]);
+                else if (arg.equals("-maximage"))
+                    maxImage = Long.parseLong(args[++i]);
+                else
+                    usage();
+            }
+        } catch (RuntimeException e) {
+            // A missing or non-numeric N.
+            usage();
+        }
+        if (args.length - i != 2)
+            usage();
+        String serverurl = args[i];
+        File localdir = new File(args[i + 1]);
+        localdir.mkdirs();
+
+        if (verbose)
+            EngineLog.setSink(new EngineLog.Sink() {
+                    public void d(String tag, String msg) {
+                        System.err.println(tag + ": " + msg);
+                    }
+                });
+
+        FetchEngine engine = new FetchEngine(serverurl,
+            new FetchEngine.DirStorage(localdir), new FetchEngine.Progress() {
+                public void message(String s) {
+                    // The engine shows dots while it waits.
+                    if (s.equals("."))
+                        System.out.print(".");
+                    else
+                        System.out.println(s);
+                }
+                public void important(String s) {
+                    System.out.println("*** " + s);
+                }
+                public void fileDone(String relpath, long bytes,
+                                     int done, int total) {
+                    System.out.println("Saved " + relpath
+                                       + " (" + done + "/" + total + ")");
+                }
+                public void setStatus(String status) {
+                }
+            });
+
+        final Boolean isMetered = metered;
+        engine.setConnectivity(new FetchEngine.Connectivity() {
+                public Boolean isConnected() {
+                    return true;
+                }
+                public Boolean isMetered() {
+                    return isMetered;
+                }
+            });
+        engine.setFetchImages(images);
+        engine.setPipelined(pipelined);
+        engine.setCatchUp(catchup);
+        engine.setUseBundle(bundle);
+        engine.setByteBudget(budget);
+        engine.setRateLimit(rate);
+        engine.setMaxImageSize(maxImage);
+
+        System.out.println(engine.fetch());
+    }
+
+    static void usage() {
+        System.err.println("Usage: FeedSync [-v] [-noimages] [-pipelined]"
+                           + " [-catchup] [-bundle] [-metered] [-budget N] [-rate N]"
+                           + " [-maximage N] serverurl localdir");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,273 @@
+package com.shallowsky.FeedViewer;
+
+// FetchBenchmark: time a whole fetch against FakeFeedme, for days of
+// various sizes, so changes to FetchEngine can be measured rather
+// than guessed at.
+//
+// Builds like FeedSync, from the app's sources with no Android SDK:
+//   cd FeedViewer
+//   mkdir -p bin/tools
+//   javac -d bin/tools -sourcepath src:tools/src \
+//       tools/src/com/shallowsky/FeedViewer/FetchBenchmark.java
+//   java -cp bin/tools com.shallowsky.FeedViewer.FetchBenchmark
+//
+// For each day size (100, 1000 and 10000 files unless given) it
+// starts a fresh server and an empty local directory, runs one fetch,
+// and reports how long it took, how many requests, connections and
+// bytes the server saw, and the peak heap in use during the fetch.
+//
+// Options, before any sizes:
+//   -feedme MS      feedme takes MS to run (default 0: already ran)
+//   -manifest MS    MANIFEST takes MS to be written (default 0)
+//   -latency MS     added to every response
+//   -bandwidth N    bytes/sec per connection
+//   -errors F       fraction of file requests that fail with a 503
+//   -textsize N     median size of HTML files
+//   -imagesize N    median size of images
+//   -noimages       don't fetch images
+//   -pipelined      fetch feeds while feedme is still running
+//   -bundle         fetch the day as one archive
+//   -bundleerrors F fraction of files that come out wrong in the bundle
+//   -threads N      number of download threads
+//   -seed N         make up a different day
+//   -v              print the engine's messages
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FetchBenchmark {
+
+    long mFeedmeTime = 0;
+    long mManifestTime = 0;
+    long mLatency = 0;
+    long mBandwidth = 0;
+    double mErrorRate = 0;
+    int mTextSize = 8 * 1024;
+    int mImageSize = 24 * 1024;
+    long mSeed = 1;
+    Boolean mImages = true;
+    Boolean mPipelined = false;
+    Boolean mBundle = false;
+    double mBundleErrorRate = 0;
+    int mThreads = -1;
+    Boolean mVerbose = false;
+
+    // One run's numbers.
+    static class Result {
+        int mFiles;
+        long mMillis;
+        int mRequests;
+        int mConnections;
+        int mErrors;
+        long mBytesSent;
+        int mSaved;
+        long mPeakHeap;
+        String mStatus;
+    }
+
+    public static void main(String[] args) throws Exception {
+        FetchBenchmark bench = new FetchBenchmark();
+        List<Integer> sizes = new ArrayList<Integer>();
+        int i = 0;
+        try {
+            for ( ; i < args.length && args[i].startsWith("-"); ++i) {
+                String arg = args[i];
+                if (arg.equals("-feedme"))
+                    bench.mFeedmeTime = Long.parseLong(args[++i]);
+                else if (arg.equals("-manifest"))
+                    bench.mManifestTime = Long.parseLong(args[++i]);
+                else if (arg.equals("-latency"))
+                    bench.mLatency = Long.parseLong(args[++i]);
+                else if (arg.equals("-bandwidth"))
+                    bench.mBandwidth = Long.parseLong(args[++i]);
+                else if (arg.equals("-errors"))
+                    bench.mErrorRate = Double.parseDouble(args[++i]);
+                else if (arg.equals("-textsize"))
+                    bench.mTextSize = Integer.parseInt(args[++i]);
+                else if (arg.equals("-imagesize"))
+                    bench.mImageSize = Integer.parseInt(args[++i]);
+                else if (arg.equals("-noimages"))
+                    bench.mImages = false;
+                else if (arg.equals("-pipelined"))
+                    bench.mPipelined = true;
+                else if (arg.equals("-bundle"))
+                    bench.mBundle = true;
+                else if (arg.equals("-bundleerrors"))
+                    bench.mBundleErrorRate = Double.parseDouble(args[++i]);
+                else if (arg.equals("-threads"))
+                    bench.mThreads = Integer.parseInt(args[++i]);
+                else if (arg.equals("-seed"))
+                    bench.mSeed = Long.parseLong(args[++i]);
+                else if (arg.equals("-v"))
+                    bench.mVerbose = true;
+                else
+                    usage();
+            }
+            for ( ; i < args.length; ++i)
+                sizes.add(Integer.parseInt(args[i]));
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(100);
+            sizes.add(1000);
+            sizes.add(10000);
+        }
+
+        if (bench.mVerbose)
+            EngineLog.setSink(new EngineLog.Sink() {
+                    public void d(String tag, String msg) {
+                        System.err.println(tag + ": " + msg);
+                    }
+                });
+
+        System.out.println("   files     secs  requests  conns  errors"
+                           + "    MB sent    saved  peak heap MB");
+        for (int n : sizes) {
+            Result r = bench.run(n);
+            System.out.println(String.format(
+                "%8d %8.2f %9d %6d %7d %10.2f %8d %13.1f",
+                r.mFiles, r.mMillis / 1000.0, r.mRequests,
+                r.mConnections, r.mErrors,
+                r.mBytesSent / 1048576.0, r.mSaved,
+                r.mPeakHeap / 1048576.0));
+            if (!r.mStatus.startsWith("Finished"))
+                System.out.println("    (" + r.mStatus + ")");
+        }
+    }
+
+    static void usage() {
+        System.err.println("Usage: FetchBenchmark [-feedme MS] [-manifest MS]"
+                           + " [-latency MS] [-bandwidth N] [-errors F]"
+                           + " [-textsize N] [-imagesize N] [-noimages]"
+                           + " [-pipelined] [-bundle] [-bundleerrors F]"
+                           + " [-threads N] [-seed N] [-v]"
+                           + " [nfiles ...]");
+        System.exit(1);
+    }
+
+    public Result run(int nfiles) throws IOException {
+        FakeFeedme server = new FakeFeedme();
+        server.mFilesPerDay = nfiles;
+        // Feeds of about a hundred files each, but at least a few
+        // feeds even for a small day, for pipelining to work on.
+        server.mNumFeeds = Math.max(4, nfiles / 100);
+        server.mTextSize = mTextSize;
+        server.mImageSize = mImageSize;
+        server.mSeed = mSeed;
+        server.mFeedmeTime = mFeedmeTime;
+        server.mManifestTime = mManifestTime;
+        server.mLatency = mLatency;
+        server.mBandwidth = mBandwidth;
+        server.mErrorRate = mErrorRate;
+        server.mBundleErrorRate = mBundleErrorRate;
+        if (mFeedmeTime <= 0)
+            server.addFinishedDay(FakeFeedme.today());
+        server.start(0);
+
+        File localdir = File.createTempFile("fetchbench", "");
+        localdir.delete();
+        localdir.mkdirs();
+
+        final int[] saved = { 0 };
+        FetchEngine engine = new FetchEngine(server.url(),
+            new FetchEngine.DirStorage(localdir), new FetchEngine.Progress() {
+                public void message(String s) {
+                    if (mVerbose && !s.equals("."))
+                        System.err.println(s);
+                }
+                public void important(String s) {
+                }
+                public void fileDone(String relpath, long bytes,
+                                     int done, int total) {
+                    synchronized (saved) {
+                        ++saved[0];
+                    }
+                }
+                public void setStatus(String status) {
+                }
+            });
+        // Check often: waiting on a poll timer isn't what
+        // we're here to measure.
+        engine.setWaitStrategy(new BackoffWaitStrategy(100, 500, -1));
+        engine.setFetchImages(mImages);
+        engine.setPipelined(mPipelined);
+        engine.setUseBundle(mBundle);
+        if (mThreads > 0)
+            engine.setNumDownloaders(mThreads);
+
+        HeapSampler sampler = new HeapSampler();
+        Result r = new Result();
+        r.mFiles = nfiles;
+        try {
+            sampler.start();
+            long start = System.nanoTime();
+            r.mStatus = engine.fetch();
+            r.mMillis = (System.nanoTime() - start) / 1000000;
+        } finally {
+            r.mPeakHeap = sampler.finish();
+            server.stop();
+            delete(localdir);
+        }
+        r.mRequests = server.requests();
+        r.mConnections = server.connections();
+        r.mErrors = server.errors();
+        r.mBytesSent = server.bytesSent();
+        synchronized (saved) {
+            r.mSaved = saved[0];
+        }
+        return r;
+    }
+
+    // Watches the heap in use while the fetch runs, and reports how
+    // far above where it started it got. The server is in the same
+    // JVM, so its share is in there too, but it keeps nothing per
+    // file bigger than a name and a hash.
+    static class HeapSampler extends Thread {
+        volatile Boolean mDone = false;
+        long mBase;
+        long mPeak = 0;
+
+        HeapSampler() {
+            setDaemon(true);
+            System.gc();
+            mBase = used();
+        }
+
+        static long used() {
+            Runtime rt = Runtime.getRuntime();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        public void run() {
+            while (!mDone) {
+                mPeak = Math.max(mPeak, used());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() {
+            mDone = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+            }
+            mPeak = Math.max(mPeak, used());
+            return Math.max(0, mPeak - mBase);
+        }
+    }
+
+    static void delete(File f) {
+        File[] kids = f.listFiles();
+        if (kids != null)
+            for (File kid : kids)
+                delete(kid);
+        f.delete();
+    }
+}